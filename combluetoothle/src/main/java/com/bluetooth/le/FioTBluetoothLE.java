@@ -4,11 +4,15 @@ import android.bluetooth.*;
 import android.content.Context;
 import android.os.Build;
 import android.util.Log;
+import com.bluetooth.le.utils.ByteBufferChunker;
 import com.bluetooth.le.utils.ByteUtils;
+import com.bluetooth.le.utils.TimeoutScheduler;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Represent "Bluetooth low energy" that using to connect to a bluetooth remote device.
@@ -33,6 +37,8 @@ import java.util.*;
 public class FioTBluetoothLE {
     private static final String TAG = "FioTBluetoothLE";
     private static FioTBluetoothLE instance;
+    /* Logs every write and read, a hex dump per chunk slows down large transfers */
+    private static volatile boolean debug;
     private BluetoothLEListener mBluetoothLEListener;
     private Context mContext;
     private volatile boolean mIsConnected;
@@ -48,13 +54,26 @@ public class FioTBluetoothLE {
     public static final int CONNECT_SUCCESS = 1;
     public static final int CONNECT_FAIL = 2;
 
+    /* Client Characteristic Configuration Descriptor, enables notifications and indications */
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
     // Fix 20 bytes for m2m
     private BluetoothGattCharacteristic compareCharacteristics;
-    private byte[] compareBytes = new byte[20];
-    private Timer readTimer = new java.util.Timer();
+    private byte[] compareBytes = new byte[0];
+    /* Chunks of the blocking large writes are copied here, one array per connection */
+    private byte[] chunkScratch = new byte[0];
+    private volatile ScheduledFuture<?> readTimer;
     private int counter;
     private final static int MAX_NUM_READ = 3;
-    private Timer writeTimer = new java.util.Timer();
+    private volatile ScheduledFuture<?> writeTimer;
+    private final TimeoutScheduler scheduler = TimeoutScheduler.getInstance();
+
+    /**
+     * Log every write with its bytes, and every read and write callback, off by default
+     */
+    public static void setDebug(boolean debug) {
+        FioTBluetoothLE.debug = debug;
+    }
 
     public synchronized void disableWrite() {
         this.disableWrite = true;
@@ -115,8 +134,8 @@ public class FioTBluetoothLE {
             mBleCallback = null;
             mBluetoothGatt = null;
             mBluetoothLEListener = null;
-            writeTimer.cancel();
-            readTimer.cancel();
+            TimeoutScheduler.cancel(writeTimer);
+            TimeoutScheduler.cancel(readTimer);
             mWorkingBluetoothService.clear();
             mEnableNotifyQueue.clear();
             mListCharacteristic.clear();
@@ -235,11 +254,36 @@ public class FioTBluetoothLE {
             return false;
         }
 
-        Log.i(TAG, "writeToCharacteristic: [" + ch.getUuid() + "], " + ByteUtils.toHexString(dataToWrite));
+        if (debug) {
+            Log.i(TAG, "writeToCharacteristic: [" + ch.getUuid() + "], " + ByteUtils.toHexString(dataToWrite));
+        }
+
         ch.setValue(dataToWrite);
         return mBluetoothGatt.writeCharacteristic(ch);
     }
 
+    /**
+     * Write with an explicit write type, e.g. WRITE_TYPE_NO_RESPONSE.
+     * The characteristic keeps its own write type for other writes.
+     */
+    public boolean writeToCharacteristic(BluetoothGattCharacteristic ch, final byte[] dataToWrite, int writeType) {
+        if (null == ch) {
+            return false;
+        }
+
+        int previousType = ch.getWriteType();
+        ch.setWriteType(writeType);
+
+        /* Write type is read when the write is started */
+        boolean started = writeToCharacteristic(ch, dataToWrite);
+        ch.setWriteType(previousType);
+        return started;
+    }
+
+    /**
+     * Bytes sent so far. For throughput, retries, ETA and latencies set a ProgressListener
+     * on the WriteStream or VerifiedWrite.
+     */
     public interface SendListener {
         void sent(int num);
     }
@@ -259,23 +303,26 @@ public class FioTBluetoothLE {
      *
      * @param ch
      * @param dataToWrite
-     * @param delayTime
+     * @param delayTime unused, FioTManager.writeStream() paces chunks by their write callbacks
      * @param blockSize
      * @param listener
+     * @deprecated waits for every chunk, use FioTManager.writeStream()
      */
+    @Deprecated
     public void writeWithoutReadBack(final BluetoothGattCharacteristic ch,
                                           final byte[] dataToWrite,
                                           final int delayTime,
                                           final int blockSize,
                                           final SendListener listener) {
-        int numBytesSent = 0;
+        ByteBufferChunker chunker = new ByteBufferChunker(ByteBuffer.wrap(dataToWrite), blockSize);
         compareCharacteristics = ch;
 
-        while (numBytesSent < dataToWrite.length && !disableWrite) {
-            byte[] bytes = ByteUtils.subByteArray(dataToWrite, numBytesSent, blockSize);
+        while (chunker.hasNext() && !disableWrite) {
+            byte[] bytes = chunker.nextArray(chunkScratch);
+            chunkScratch = bytes;
 
             writeToCharacteristic(ch, bytes);
-            numBytesSent += bytes.length;
+            int numBytesSent = chunker.getBytesConsumed();
             compareBytes = bytes;
 
             Log.i(TAG, "writeWithoutReadBack: " + ByteUtils.toHexString(bytes));
@@ -286,9 +333,8 @@ public class FioTBluetoothLE {
             }
 
             // After 1s
-            writeTimer = new Timer();
-            writeTimer.schedule(
-                    new java.util.TimerTask() {
+            writeTimer = scheduler.schedule(
+                    new Runnable() {
                         @Override
                         public void run() {
                             synchronized (write) {
@@ -319,23 +365,27 @@ public class FioTBluetoothLE {
      *
      * @param ch
      * @param dataToWrite
-     * @param delayTime
+     * @param delayTime unused, FioTManager.writeStream() paces chunks by their write callbacks
      * @param blockSize
      * @param listener
+     * @deprecated parks the caller for every chunk, use FioTManager.writeVerified()
      */
+    @Deprecated
     public void writeWithReadBack(final BluetoothGattCharacteristic ch,
                                   final byte[] dataToWrite,
                                   final int delayTime,
                                   final int blockSize,
                                   final SendListener listener) {
-        int numBytesSent = 0;
+        ByteBufferChunker chunker = new ByteBufferChunker(ByteBuffer.wrap(dataToWrite), blockSize);
         compareCharacteristics = ch;
 
-        while (numBytesSent < dataToWrite.length && !disableWrite) {
-            byte[] bytes = ByteUtils.subByteArray(dataToWrite, numBytesSent, blockSize);
+        /* Kept until the read back matches, the next chunk is only copied after */
+        while (chunker.hasNext() && !disableWrite) {
+            byte[] bytes = chunker.nextArray(chunkScratch);
+            chunkScratch = bytes;
 
             writeToCharacteristic(ch, bytes);
-            numBytesSent += bytes.length;
+            int numBytesSent = chunker.getBytesConsumed();
             compareBytes = bytes;
 
             Log.i(TAG, "writeWithReadBack: " + ByteUtils.toHexString(dataToWrite));
@@ -346,9 +396,8 @@ public class FioTBluetoothLE {
             }
 
             // After 1s
-            writeTimer = new Timer();
-            writeTimer.schedule(
-                    new java.util.TimerTask() {
+            writeTimer = scheduler.schedule(
+                    new Runnable() {
                         @Override
                         public void run() {
                             synchronized (write) {
@@ -370,9 +419,8 @@ public class FioTBluetoothLE {
             }
 
             // Read back data to check characteristic updated value
-            readTimer = new Timer();
-            readTimer.schedule(
-                    new java.util.TimerTask() {
+            readTimer = scheduler.scheduleAtFixedRate(
+                    new Runnable() {
                         @Override
                         public void run() {
                             synchronized (FioTBluetoothLE.this) {
@@ -399,7 +447,7 @@ public class FioTBluetoothLE {
             try {
                 synchronized (read) {
                     read.wait();
-                    readTimer.cancel();
+                    TimeoutScheduler.cancel(readTimer);
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -441,12 +489,169 @@ public class FioTBluetoothLE {
         return characteristic;
     }
 
+    /**
+     * Read descriptor's value
+     *
+     * @param descriptor descriptor that we want to read
+     */
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+        if (mBluetoothGatt == null || descriptor == null) {
+            Log.d(TAG, "readDescriptor: " + descriptor + " - " + mBluetoothGatt);
+            return false;
+        }
+
+        return mBluetoothGatt.readDescriptor(descriptor);
+    }
+
+    /**
+     * Write descriptor's value. Result will be in @onDescriptorWrite()
+     */
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        if (mBluetoothGatt == null || descriptor == null) {
+            Log.d(TAG, "writeDescriptor: " + descriptor + " - " + mBluetoothGatt);
+            return false;
+        }
+
+        descriptor.setValue(value);
+        return mBluetoothGatt.writeDescriptor(descriptor);
+    }
+
     /**
      * Get RSSI of connected device.
      * Result will be in @onReadRemoteRSSI(int rssi, int status)
      */
-    public void readRSSI() {
-        mBluetoothGatt.readRemoteRssi();
+    public boolean readRSSI() {
+        if (mBluetoothGatt == null) {
+            Log.d(TAG, "readRSSI: mBluetoothGatt is null");
+            return false;
+        }
+
+        return mBluetoothGatt.readRemoteRssi();
+    }
+
+    /**
+     * Enable or disable notification locally and write the CCCD of the characteristic.
+     * Result will be in @onDescriptorWrite()
+     *
+     * @param value one of BluetoothGattDescriptor ENABLE_NOTIFICATION_VALUE,
+     *              ENABLE_INDICATION_VALUE or DISABLE_NOTIFICATION_VALUE
+     */
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic ch,
+                                                 BluetoothGattDescriptor cccd,
+                                                 byte[] value) {
+        if (mBluetoothGatt == null || ch == null || cccd == null) {
+            Log.d(TAG, "setCharacteristicNotification: " + ch + " - " + mBluetoothGatt);
+            return false;
+        }
+
+        boolean enabled = !Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+
+        if (!mBluetoothGatt.setCharacteristicNotification(ch, enabled)) {
+            Log.e(TAG, "Setting proper notification status for characteristic failed!");
+        }
+
+        cccd.setValue(value);
+        return mBluetoothGatt.writeDescriptor(cccd);
+    }
+
+    /**
+     * Request connection priority, available from Lollipop. There is no callback,
+     * the connection parameters change later.
+     *
+     * @param priority one of BluetoothGatt CONNECTION_PRIORITY_
+     */
+    public boolean requestConnectionPriority(int priority) {
+        if (mBluetoothGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Log.d(TAG, "requestConnectionPriority: not supported, mBluetoothGatt = " + mBluetoothGatt);
+            return false;
+        }
+
+        return mBluetoothGatt.requestConnectionPriority(priority);
+    }
+
+    /**
+     * Start a reliable write transaction, following writes are only prepared on the
+     * peripheral until @executeReliableWrite()
+     */
+    public boolean beginReliableWrite() {
+        if (mBluetoothGatt == null) {
+            Log.d(TAG, "beginReliableWrite: mBluetoothGatt is null");
+            return false;
+        }
+
+        return mBluetoothGatt.beginReliableWrite();
+    }
+
+    /**
+     * Commit prepared writes. Result will be in @onReliableWriteCompleted(int status)
+     */
+    public boolean executeReliableWrite() {
+        if (mBluetoothGatt == null) {
+            Log.d(TAG, "executeReliableWrite: mBluetoothGatt is null");
+            return false;
+        }
+
+        return mBluetoothGatt.executeReliableWrite();
+    }
+
+    /**
+     * Drop prepared writes, there is no callback
+     */
+    @SuppressWarnings("deprecation")
+    public boolean abortReliableWrite() {
+        if (mBluetoothGatt == null) {
+            Log.d(TAG, "abortReliableWrite: mBluetoothGatt is null");
+            return false;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mBluetoothGatt.abortReliableWrite();
+        } else {
+            mBluetoothGatt.abortReliableWrite(mBluetoothDevice);
+        }
+
+        return true;
+    }
+
+    /**
+     * Request ATT MTU, available from Lollipop.
+     * Result will be in @onMtuChanged(int mtu, int status)
+     */
+    public boolean requestMtu(int mtu) {
+        if (mBluetoothGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Log.d(TAG, "requestMtu: not supported, mBluetoothGatt = " + mBluetoothGatt);
+            return false;
+        }
+
+        return mBluetoothGatt.requestMtu(mtu);
+    }
+
+    /**
+     * Set preferred PHY, available from Oreo.
+     * Result will be in @onPhyUpdate(int txPhy, int rxPhy, int status)
+     */
+    public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        if (mBluetoothGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            Log.d(TAG, "setPreferredPhy: not supported, mBluetoothGatt = " + mBluetoothGatt);
+            return false;
+        }
+
+        mBluetoothGatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+        return true;
+    }
+
+    /**
+     * Read current PHY, available from Oreo.
+     * Result will be in @onPhyRead(int txPhy, int rxPhy, int status)
+     */
+    public boolean readPhy() {
+        if (mBluetoothGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            Log.d(TAG, "readPhy: not supported, mBluetoothGatt = " + mBluetoothGatt);
+            return false;
+        }
+
+        mBluetoothGatt.readPhy();
+        return true;
     }
 
     private void printConfigService() {
@@ -502,6 +707,13 @@ public class FioTBluetoothLE {
         }
     }
 
+    /**
+     * Enable notifications one characteristic after the other, outside of any request queue.
+     *
+     * @deprecated FioTManager queues CCCD writes with the other GATT operations, use
+     * FioTManager.enableNotification() or setCharacteristicNotification()
+     */
+    @Deprecated
     public void setNotification(FioTBluetoothCharacteristic ch) {
         mEnableNotifyQueue.add(ch);
         if (mEnableNotifyQueue.size() == 1) {
@@ -529,7 +741,7 @@ public class FioTBluetoothLE {
 
         // This is also sometimes required (e.g. for heart rate monitors) to enable notifications/indications
         // see: https://developer.bluetooth.org/gatt/descriptors/Pages/DescriptorViewer.aspx?u=org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
-        BluetoothGattDescriptor descriptor = ch.getCharacteristic().getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+        BluetoothGattDescriptor descriptor = ch.getCharacteristic().getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
         if (descriptor != null) {
             Log.i(TAG, "setNotificationForCharacteristic: " + ch.getUuid().toString());
             byte[] val = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
@@ -560,8 +772,7 @@ public class FioTBluetoothLE {
                 mBluetoothLEListener.onConnectResult(CONNECT_SUCCESS, 0);
 
                 /* Delay to reduce error 133 */
-                Timer timer = new Timer();
-                timer.schedule(new TimerTask() {
+                scheduler.schedule(new Runnable() {
                     @Override
                     public void run() {
                         startServicesDiscovery();
@@ -610,12 +821,14 @@ public class FioTBluetoothLE {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
-            Log.i(TAG, "onCharacteristicRead: read done");
+            if (debug) {
+                Log.i(TAG, "onCharacteristicRead: read done");
+            }
 
             if (characteristic == compareCharacteristics) {
                 if (ByteUtils.compare2Array(characteristic.getValue(), compareBytes)) {
                     Log.i(TAG, "onCharacteristicRead: same data");
-                    readTimer.cancel();
+                    TimeoutScheduler.cancel(readTimer);
                     synchronized (read) {
                         counter = 0;
                         read.notify();
@@ -627,7 +840,9 @@ public class FioTBluetoothLE {
                 }
             }
 
-            if (readListener != null) {
+            if (readListener instanceof BluetoothLEReadStatusListener) {
+                ((BluetoothLEReadStatusListener) readListener).onRead(characteristic, status);
+            } else if (readListener != null) {
                 readListener.onRead(characteristic);
             }
         }
@@ -644,9 +859,11 @@ public class FioTBluetoothLE {
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.i(TAG, "onCharacteristicWrite: " + status);
+            if (debug) {
+                Log.i(TAG, "onCharacteristicWrite: " + status);
+            }
 
-            writeTimer.cancel();
+            TimeoutScheduler.cancel(writeTimer);
             synchronized (write) {
                 write.notify();
             }
@@ -654,15 +871,63 @@ public class FioTBluetoothLE {
             mBluetoothLEListener.onDidWrite(characteristic, status);
         }
 
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            Log.i(TAG, "onReliableWriteCompleted: " + status);
+
+            if (mBluetoothLEListener instanceof BluetoothLEGattListener) {
+                ((BluetoothLEGattListener) mBluetoothLEListener).onReliableWriteCompleted(status);
+            }
+        }
+
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
             mBluetoothLEListener.onReadRemoteRSSI(rssi, status);
         }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.i(TAG, "onMtuChanged: mtu = " + mtu + ", status = " + status);
+
+            if (mBluetoothLEListener instanceof BluetoothLEGattListener) {
+                ((BluetoothLEGattListener) mBluetoothLEListener).onMtuChanged(mtu, status);
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (mBluetoothLEListener instanceof BluetoothLEGattListener) {
+                ((BluetoothLEGattListener) mBluetoothLEListener).onPhyUpdate(txPhy, rxPhy, status);
+            }
+        }
+
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (mBluetoothLEListener instanceof BluetoothLEGattListener) {
+                ((BluetoothLEGattListener) mBluetoothLEListener).onPhyRead(txPhy, rxPhy, status);
+            }
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (mBluetoothLEListener instanceof BluetoothLEGattListener) {
+                ((BluetoothLEGattListener) mBluetoothLEListener).onDescriptorRead(descriptor, status);
+            }
+        }
+
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             Log.i(TAG, "onDescriptorWrite status = " + status);
 
+            /* Not a notification setup write, it was queued by the user */
+            if (mEnableNotifyQueue.isEmpty() ||
+                    mEnableNotifyQueue.element().getCharacteristic() != descriptor.getCharacteristic()) {
+                if (mBluetoothLEListener instanceof BluetoothLEGattListener) {
+                    ((BluetoothLEGattListener) mBluetoothLEListener).onDescriptorWrite(descriptor, status);
+                }
+                return;
+            }
+
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 if (mBluetoothLEListener != null) {
                     mBluetoothLEListener.onConnectResult(CONNECT_FAIL, status);
@@ -674,8 +939,7 @@ public class FioTBluetoothLE {
 
             mEnableNotifyQueue.remove();
             if (mEnableNotifyQueue.size() > 0) {
-                Timer timer = new Timer();
-                timer.schedule(new TimerTask() {
+                scheduler.schedule(new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -723,6 +987,13 @@ public class FioTBluetoothLE {
         void onRead(BluetoothGattCharacteristic characteristic);
     }
 
+    /**
+     * Read listener that also wants the gatt status of the read
+     */
+    public interface BluetoothLEReadStatusListener extends BluetoothLEReadListener {
+        void onRead(BluetoothGattCharacteristic characteristic, int status);
+    }
+
     public interface BluetoothLEListener {
         void onConnectResult(int result, int error);
 
@@ -741,6 +1012,23 @@ public class FioTBluetoothLE {
         void onStatusChange(int interval);
     }
 
+    /**
+     * Listener that also wants descriptor, reliable write, mtu and phy results
+     */
+    public interface BluetoothLEGattListener extends BluetoothLEListener {
+        void onDescriptorRead(BluetoothGattDescriptor descriptor, int status);
+
+        void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status);
+
+        void onReliableWriteCompleted(int status);
+
+        void onMtuChanged(int mtu, int status);
+
+        void onPhyUpdate(int txPhy, int rxPhy, int status);
+
+        void onPhyRead(int txPhy, int rxPhy, int status);
+    }
+
     /**
      * Get device that we connect before
      *
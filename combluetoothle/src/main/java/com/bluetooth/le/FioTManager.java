@@ -3,23 +3,49 @@ package com.bluetooth.le;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.bluetooth.le.exception.CharacteristicNotFound;
 import com.bluetooth.le.exception.IncorrectState;
+import com.bluetooth.le.request.ChunkSource;
+import com.bluetooth.le.request.ChunkSources;
+import com.bluetooth.le.request.OverflowPolicy;
+import com.bluetooth.le.request.ProgressListener;
+import com.bluetooth.le.request.ReliableWrite;
 import com.bluetooth.le.request.Request;
 import com.bluetooth.le.request.RequestCmd;
 import com.bluetooth.le.request.RequestData;
+import com.bluetooth.le.request.RequestFuture;
+import com.bluetooth.le.request.RequestPriority;
 import com.bluetooth.le.request.RequestHandler;
-import com.bluetooth.le.utils.ByteUtils;
+import com.bluetooth.le.request.RequestMetrics;
+import com.bluetooth.le.request.RequestQueueListener;
+import com.bluetooth.le.request.RetryPolicy;
+import com.bluetooth.le.request.TransferSession;
+import com.bluetooth.le.request.VerifiedWrite;
+import com.bluetooth.le.request.VerifyPolicy;
+import com.bluetooth.le.request.WriteBatcher;
+import com.bluetooth.le.request.WriteStream;
+import com.bluetooth.le.utils.PayloadCodec;
+import com.bluetooth.le.utils.PayloadEncoder;
+import com.bluetooth.le.utils.TimeoutScheduler;
 import com.example.com.bluetooth.le.R;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.bluetooth.le.FioTManager.ConnectionStatus.Connected;
 import static com.bluetooth.le.FioTManager.ConnectionStatus.Connecting;
@@ -28,15 +54,28 @@ import static com.bluetooth.le.FioTManager.ConnectionStatus.Disconnected;
 /**
  * Created by caoxuanphong on    7/25/16.
  */
-public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBluetoothLE.BluetoothLEReadListener {
+public class FioTManager implements FioTBluetoothLE.BluetoothLEGattListener, FioTBluetoothLE.BluetoothLEReadStatusListener {
     private static final String TAG = "FioTManager";
 
     /* After timeout @onConnectFail() is called */
     private static final int CONNECT_TIMEOUT_MILLISECOND = 30000;
 
-    /* Number of bytes send to characteristic a time, limit 20 bytes, more cause error */
+    /* Number of bytes send to characteristic a time until a larger MTU is negotiated */
     private static final int DATA_CHUNK = 20;
 
+    /* ATT MTU of BLE 4.0 and its opcode + handle header */
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    /* Largest MTU Android accepts */
+    private static final int MAX_MTU = 517;
+
+    /* Longest attribute value ATT allows, smaller than MAX_MTU - ATT_HEADER_SIZE */
+    private static final int MAX_ATTRIBUTE_SIZE = 512;
+
+    /* Checkpoints of resumable transfers, under the app's files */
+    private static final String TRANSFER_DIR = "fiot_transfers";
+
     public enum ConnectionStatus {
         Disconnected,
         Connecting,
@@ -49,9 +88,18 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
     private FioTManagerConnectionListener connectionListener;
     private FioTManagerDataListener dataListener;
     private Context mContext;
-    private Timer connectionTimeout;
+    private ScheduledFuture<?> connectionTimeout;
     private ConnectionStatus connectionStatus;
     private RequestHandler requestHandler;
+    private volatile int preferredMtu = MAX_MTU;
+    private volatile int mtu = DEFAULT_MTU;
+    /* MTU - 3, size of the chunks of every chunked write */
+    private volatile int dataChunk = DATA_CHUNK;
+    /* Compresses bulk writes of arrays, null to send them as they are */
+    private volatile PayloadEncoder payloadEncoder;
+    /* Batching window of characteristics, see setWriteBatching() */
+    private final Map<String, Long> batchWindows = new ConcurrentHashMap<>();
+    private final Map<String, WriteBatcher> batchers = new HashMap<>();
 
     /**
      * State callback
@@ -79,6 +127,7 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
         this.device = device.getBluetoothDevice();
         this.services = services;
         this.requestHandler = new RequestHandler();
+        this.requestHandler.setMaxWritePayload(dataChunk);
         connectionStatus = Disconnected;
         initLE();
     }
@@ -119,6 +168,9 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
         device = null;
 
         stopConnectTimeout();
+        cancelBatches();
+        requestHandler.reset();
+        setMtu(DEFAULT_MTU);
 
         if (ble != null) {
             ble.end();
@@ -144,15 +196,12 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
     }
 
     private void stopConnectTimeout() {
-        if (connectionTimeout != null) {
-            connectionTimeout.cancel();
-        }
+        TimeoutScheduler.cancel(connectionTimeout);
     }
 
     private void startConnectTimeout(int timeoutMillisec) {
         if (timeoutMillisec > 0) {
-            connectionTimeout = new Timer();
-            connectionTimeout.schedule(new TimerTask() {
+            connectionTimeout = TimeoutScheduler.getInstance().schedule(new Runnable() {
                 @Override
                 public void run() {
                     Log.i(TAG, "Connect time out");
@@ -170,9 +219,20 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
 
     /**
      * Write data to characteristic with any size
-     * If size > DATA_CHUNK, it is cut into small chunks
+     * If size > MTU - 3, it is cut into small chunks
+     *
+     * @return false if a bounded queue refused the data, see setQueueCapacity()
      */
     public boolean writeWithQueue(String characUUID, byte[] data) throws CharacteristicNotFound {
+        return writeWithQueue(characUUID, data, RequestPriority.INTERACTIVE);
+    }
+
+    /**
+     * Same as writeWithQueue(characUUID, data), use RequestPriority.BULK for large transfers
+     * so commands and reads don't wait behind every chunk
+     */
+    public boolean writeWithQueue(String characUUID, byte[] data, RequestPriority priority)
+            throws CharacteristicNotFound {
         if (data == null || characUUID == null || ble == null) return true;
 
         FioTBluetoothCharacteristic ch = getCharacteristic(characUUID);
@@ -187,21 +247,370 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
                     getString(R.string.exception_characteristic_do_not_have_property_write) +
                     characUUID);
         }
-        /* Split data into multiple packet with size equal DATA_CHUNK */
-        int index = 0;
-        while (index < data.length) {
-            byte[] bytes = ByteUtils.subByteArray(data, index, DATA_CHUNK);
-            index += bytes.length;
+        if (data.length > 0) {
+            WriteBatcher batcher = batcherOf(characUUID, ch);
+            RequestFuture future;
 
-            RequestData requestData = new RequestData(ch.getCharacteristic(), bytes);
-            Request request = new Request(RequestCmd.WRITE, requestData);
-            requestHandler.enqueue(request);
-            requestHandler.implRightNow(ble);
+            if (batcher != null) {
+                future = batcher.write(RequestCmd.WRITE, data, priority, dataChunk);
+            } else {
+                /* Caller may reuse its buffer right away, chunks slice this copy */
+                future = enqueueWrite(ch, RequestCmd.WRITE, ByteBuffer.wrap(data.clone()), priority, null, 0);
+            }
+
+            /* Refused or dropped by a full queue */
+            return !(future.isDone() && !future.isSuccess());
         }
 
         return true;
     }
 
+    /**
+     * Write data to characteristic with any size through the request queue.
+     * If size > MTU - 3, it is cut into small chunks. Data is copied, the caller may
+     * reuse it right away.
+     *
+     * @return handle that completes when the last chunk is written or as soon as one chunk fails
+     */
+    public RequestFuture write(String characUUID, byte[] data) throws IncorrectState, CharacteristicNotFound {
+        return write(characUUID, data, RequestPriority.INTERACTIVE);
+    }
+
+    public RequestFuture write(String characUUID, byte[] data, RequestPriority priority)
+            throws IncorrectState, CharacteristicNotFound {
+        return write(characUUID, data, priority, null);
+    }
+
+    /**
+     * @param tag cancelRequests(tag) drops the chunks not sent yet, null for none
+     */
+    public RequestFuture write(String characUUID, byte[] data, RequestPriority priority, Object tag)
+            throws IncorrectState, CharacteristicNotFound {
+        return write(characUUID, data, priority, tag, 0);
+    }
+
+    /**
+     * @param timeToLiveMillisec chunks not sent within this time expire with STATUS_EXPIRED,
+     *                           0 for no deadline
+     */
+    public RequestFuture write(String characUUID,
+                               byte[] data,
+                               RequestPriority priority,
+                               Object tag,
+                               long timeToLiveMillisec) throws IncorrectState, CharacteristicNotFound {
+        /* Chunks slice this copy */
+        return write(characUUID, ByteBuffer.wrap(data.clone()), priority, tag, timeToLiveMillisec);
+    }
+
+    /**
+     * Write data from its position to its limit, neither is moved. Direct and memory-mapped
+     * buffers, e.g. a firmware image, are copied one chunk at a time as it's sent.
+     * Chunks are slices of data, don't modify it before the future completes.
+     */
+    public RequestFuture write(String characUUID,
+                               ByteBuffer data,
+                               RequestPriority priority,
+                               Object tag,
+                               long timeToLiveMillisec) throws IncorrectState, CharacteristicNotFound {
+        if (ble == null) {
+            throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
+        }
+
+        FioTBluetoothCharacteristic ch = getCharacteristic(characUUID);
+
+        if (ch == null) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_not_found) +
+                    characUUID);
+        }
+        if (!ch.isWriteable()) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_do_not_have_property_write) +
+                    characUUID);
+        }
+
+        /* Goes after the batched writes, and without waiting for a window */
+        WriteBatcher batcher = batcherOf(characUUID, ch);
+        if (batcher != null) {
+            return batcher.writeThrough(RequestCmd.WRITE, data, priority, tag,
+                    deadlineOf(timeToLiveMillisec), dataChunk);
+        }
+
+        return enqueueWrite(ch, RequestCmd.WRITE, data, priority, tag, deadlineOf(timeToLiveMillisec));
+    }
+
+    /**
+     * Write without response through the request queue, cut into MTU - 3 bytes packets.
+     * Each packet completes once Android handed it to the controller, the peripheral
+     * doesn't acknowledge it.
+     */
+    public RequestFuture writeWithoutResponse(String characUUID, byte[] data)
+            throws IncorrectState, CharacteristicNotFound {
+        return writeWithoutResponse(characUUID, data, RequestPriority.INTERACTIVE);
+    }
+
+    public RequestFuture writeWithoutResponse(String characUUID, byte[] data, RequestPriority priority)
+            throws IncorrectState, CharacteristicNotFound {
+        if (ble == null) {
+            throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
+        }
+
+        FioTBluetoothCharacteristic ch = getCharacteristic(characUUID);
+
+        if (ch == null) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_not_found) +
+                    characUUID);
+        }
+        if (!ch.isWriteable()) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_do_not_have_property_write) +
+                    characUUID);
+        }
+
+        WriteBatcher batcher = batcherOf(characUUID, ch);
+        if (batcher != null) {
+            return batcher.write(RequestCmd.WRITE_NO_RESPONSE, data, priority, dataChunk);
+        }
+
+        return enqueueWrite(ch, RequestCmd.WRITE_NO_RESPONSE, ByteBuffer.wrap(data.clone()), priority, null, 0);
+    }
+
+    /**
+     * Batch writeWithQueue() and writeWithoutResponse() calls to a characteristic into
+     * packets, see {@link WriteBatcher}
+     *
+     * @param windowMillisec longest wait of a batched write, 0 to write every call right away
+     */
+    public void setWriteBatching(String characUUID, long windowMillisec) {
+        WriteBatcher batcher;
+
+        synchronized (batchers) {
+            if (windowMillisec > 0) {
+                batchWindows.put(characUUID, windowMillisec);
+            } else {
+                batchWindows.remove(characUUID);
+            }
+
+            batcher = batchers.remove(characUUID);
+        }
+
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Queue the batched writes of a characteristic now, e.g. before a latency critical command
+     */
+    public void flushWrites(String characUUID) {
+        WriteBatcher batcher;
+
+        synchronized (batchers) {
+            batcher = batchers.get(characUUID);
+        }
+
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * @return batcher of the characteristic, null if it isn't batched
+     */
+    private WriteBatcher batcherOf(String characUUID, FioTBluetoothCharacteristic ch) {
+        Long window = batchWindows.get(characUUID);
+        if (window == null) {
+            return null;
+        }
+
+        WriteBatcher batcher;
+        WriteBatcher stale = null;
+
+        synchronized (batchers) {
+            batcher = batchers.get(characUUID);
+
+            /* The characteristic object is a new one after reconnecting */
+            if (batcher == null || batcher.getCharacteristic() != ch.getCharacteristic()) {
+                stale = batcher;
+                batcher = new WriteBatcher(requestHandler, ch.getCharacteristic(), window);
+                batchers.put(characUUID, batcher);
+            }
+        }
+
+        if (stale != null) {
+            stale.cancel();
+        }
+
+        requestHandler.impl(ble);
+        return batcher;
+    }
+
+    private void cancelBatches() {
+        List<WriteBatcher> pending;
+
+        synchronized (batchers) {
+            pending = new ArrayList<>(batchers.values());
+            batchers.clear();
+        }
+
+        for (WriteBatcher batcher : pending) {
+            batcher.cancel();
+        }
+    }
+
+    /**
+     * Stream data with writes without response in the BULK lane, see {@link WriteStream}.
+     * Data is compressed first when a codec is set.
+     *
+     * @param listener progress, called on the GATT callback thread, may be null
+     * @return the started stream
+     */
+    public WriteStream writeStream(String characUUID, byte[] data, FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        return startStream(encodedStream(characUUID, data, 0), listener);
+    }
+
+    /**
+     * Same as writeStream() with an array, data is streamed from its position to its limit
+     */
+    public WriteStream writeStream(String characUUID, ByteBuffer data, FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        return writeStream(characUUID, data, 0, listener);
+    }
+
+    /**
+     * Same as writeStream() with an array, data is read from source as the stream moves
+     *
+     * @param source read on the GATT callback thread, closing it is up to the caller
+     */
+    public WriteStream writeStream(String characUUID, ChunkSource source, FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        WriteStream stream = new WriteStream(requestHandler,
+                streamCharacteristic(characUUID),
+                source,
+                blockSizeOf(0));
+        return startStream(stream, listener);
+    }
+
+    /**
+     * Stream data over several characteristics, chunk N to characteristic N % count
+     *
+     * @param characUUIDs data pipes, in the order the peripheral expects chunk 0, 1...
+     */
+    public WriteStream writeStriped(String[] characUUIDs, byte[] data, FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        return writeStriped(characUUIDs, ByteBuffer.wrap(data), listener);
+    }
+
+    /**
+     * Same as writeStriped() with an array, data is streamed from its position to its limit
+     */
+    public WriteStream writeStriped(String[] characUUIDs, ByteBuffer data, FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[characUUIDs.length];
+
+        for (int i = 0; i < characUUIDs.length; i++) {
+            characteristics[i] = streamCharacteristic(characUUIDs[i]);
+        }
+
+        WriteStream stream = new WriteStream(requestHandler, characteristics, data, blockSizeOf(0));
+        return startStream(stream, listener);
+    }
+
+    private WriteStream writeStream(String characUUID,
+                                    ByteBuffer data,
+                                    int blockSize,
+                                    FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        WriteStream stream = new WriteStream(requestHandler,
+                streamCharacteristic(characUUID),
+                data,
+                blockSizeOf(blockSize));
+        return startStream(stream, listener);
+    }
+
+    /**
+     * @return stream of data compressed by the codec set, not started
+     */
+    private WriteStream encodedStream(String characUUID, byte[] data, int blockSize)
+            throws IncorrectState, CharacteristicNotFound {
+        final PayloadEncoder encoder = payloadEncoder;
+        BluetoothGattCharacteristic characteristic = streamCharacteristic(characUUID);
+
+        if (encoder == null) {
+            return new WriteStream(requestHandler, characteristic, ByteBuffer.wrap(data), blockSizeOf(blockSize));
+        }
+
+        final ByteBuffer payload = encoder.encode(ByteBuffer.wrap(data));
+        WriteStream stream = new WriteStream(requestHandler, characteristic, payload, blockSizeOf(blockSize));
+
+        stream.getFuture().addCallback(new RequestFuture.Callback() {
+            @Override
+            public void onComplete(RequestFuture future) {
+                encoder.release(payload);
+            }
+        });
+
+        return stream;
+    }
+
+    private BluetoothGattCharacteristic streamCharacteristic(String characUUID)
+            throws IncorrectState, CharacteristicNotFound {
+        if (ble == null) {
+            throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
+        }
+
+        FioTBluetoothCharacteristic ch = getCharacteristic(characUUID);
+
+        if (ch == null) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_not_found) +
+                    characUUID);
+        }
+
+        return ch.getCharacteristic();
+    }
+
+    private WriteStream startStream(WriteStream stream, FioTBluetoothLE.SendListener listener) {
+        stream.setListener(listener);
+        requestHandler.impl(ble);
+        stream.start();
+        return stream;
+    }
+
+    private RequestFuture enqueueWrite(FioTBluetoothCharacteristic ch,
+                                       RequestCmd cmd,
+                                       ByteBuffer data,
+                                       RequestPriority priority,
+                                       Object tag,
+                                       long deadline) {
+        int chunkSize = dataChunk;
+        int end = data.limit();
+        int numChunks = Math.max(1, (data.remaining() + chunkSize - 1) / chunkSize);
+        RequestFuture future = new RequestFuture(cmd, numChunks);
+
+        /* Split data into multiple packet with size equal MTU - 3, pooled and not copied */
+        int index = data.position();
+        do {
+            int length = Math.min(chunkSize, end - index);
+            Request request = Request.obtain(cmd, ch.getCharacteristic(), data, index, length, future);
+            index += length;
+            request.setPriority(priority);
+            request.setTag(tag);
+            request.setDeadline(deadline);
+
+            /* Refused, the future is already failed so the rest is not queued */
+            if (!requestHandler.enqueue(request)) {
+                break;
+            }
+
+            requestHandler.implRightNow(ble);
+        } while (index < end);
+
+        return future;
+    }
+
     public void writeWithoutQueue(String characUUID, byte[] data) throws CharacteristicNotFound {
         if (data == null || characUUID == null || ble == null) return;
 
@@ -221,10 +630,16 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
 
     }
 
+    /**
+     * Cancel every queued read and write of a characteristic, their futures complete
+     * with STATUS_CANCELLED. Requests of other characteristics are kept.
+     */
     public void clearCharacteristicQueue(String uuid) {
         FioTBluetoothCharacteristic ch = getCharacteristic(uuid);
 
         if (ch != null) {
+            requestHandler.cancel(ch.getCharacteristic());
+
             Queue<byte[]> queue = ch.getmDataToWriteQueue();
 
             if (queue != null) {
@@ -235,30 +650,227 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
         }
     }
 
-    public synchronized void writeLargeSafe(String characUuid,
-                                            byte[] data,
-                                            int delayTimeMilliSec,
-                                            int blockSize,
-                                            FioTBluetoothLE.SendListener listener) {
-        ble.writeWithReadBack(getCharacteristic(characUuid).getCharacteristic(),
-                data,
-                delayTimeMilliSec,
-                blockSize,
-                listener);
+    /**
+     * Write data chunk by chunk, reading every chunk back, see {@link VerifiedWrite}
+     *
+     * @param listener bytes verified so far, called on the GATT callback thread, may be null
+     * @return the started write
+     */
+    public VerifiedWrite writeVerified(String characUUID, ByteBuffer data, FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        return writeVerified(characUUID, data, VerifyPolicy.EVERY_CHUNK, 0, listener);
     }
 
-    public synchronized void writeLargeFast(String characUuid,
-                                            byte[] data,
-                                            int delayTimeMilliSec,
-                                            int blockSize) {
-        ble.writeWithoutReadBack(getCharacteristic(characUuid).getCharacteristic(),
+    /**
+     * @param policy read back every Nth chunk or check a CRC the peripheral exposes,
+     *               see {@link VerifyPolicy}
+     */
+    public VerifiedWrite writeVerified(String characUUID,
+                                       ByteBuffer data,
+                                       VerifyPolicy policy,
+                                       FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        return writeVerified(characUUID, data, policy, 0, listener);
+    }
+
+    private VerifiedWrite writeVerified(String characUUID,
+                                        ByteBuffer data,
+                                        VerifyPolicy policy,
+                                        int blockSize,
+                                        FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        VerifiedWrite write = createVerifiedWrite(characUUID, data, policy, blockSize);
+        write.setListener(listener);
+        requestHandler.impl(ble);
+        write.start();
+        return write;
+    }
+
+    private VerifiedWrite createVerifiedWrite(String characUUID,
+                                              ByteBuffer data,
+                                              VerifyPolicy policy,
+                                              int blockSize)
+            throws IncorrectState, CharacteristicNotFound {
+        if (ble == null) {
+            throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
+        }
+
+        FioTBluetoothCharacteristic ch = getCharacteristic(characUUID);
+
+        if (ch == null) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_not_found) +
+                    characUUID);
+        }
+        if (!ch.isWriteable()) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_do_not_have_property_write) +
+                    characUUID);
+        }
+
+        VerifiedWrite write = new VerifiedWrite(requestHandler,
+                ch.getCharacteristic(),
                 data,
-                delayTimeMilliSec,
-                blockSize,
-                null);
+                blockSizeOf(blockSize));
+        write.setPolicy(policy);
+        return write;
+    }
+
+    /**
+     * Same as writeVerified(), but resumes from where the same data stopped before,
+     * see {@link TransferSession}
+     *
+     * @param transferId names the checkpoint, e.g. the firmware file name
+     * @param listener   absolute bytes verified, resumed ones included, may be null
+     */
+    public TransferSession writeResumable(String transferId,
+                                          String characUUID,
+                                          ByteBuffer data,
+                                          VerifyPolicy policy,
+                                          FioTBluetoothLE.SendListener listener)
+            throws IncorrectState, CharacteristicNotFound {
+        return writeResumable(transferId, characUUID, data, policy, listener, null, 0);
+    }
+
+    /**
+     * @param progressListener throughput, rewrites and ETA at most once per interval, may be
+     *                         null, see VerifiedWrite.setProgressListener()
+     */
+    public TransferSession writeResumable(String transferId,
+                                          String characUUID,
+                                          ByteBuffer data,
+                                          VerifyPolicy policy,
+                                          FioTBluetoothLE.SendListener listener,
+                                          ProgressListener progressListener,
+                                          long intervalMillisec)
+            throws IncorrectState, CharacteristicNotFound {
+        VerifiedWrite write = createVerifiedWrite(characUUID, data, policy, 0);
+        write.setProgressListener(progressListener, intervalMillisec);
+        TransferSession session = new TransferSession(checkpointOf(transferId), data);
+        requestHandler.impl(ble);
+        session.start(write, listener);
+        return session;
+    }
+
+    /**
+     * Forget the checkpoint of a transfer, the next writeResumable() starts from byte 0
+     */
+    public void discardTransfer(String transferId) {
+        File file = checkpointOf(transferId);
+
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "discardTransfer: can't delete " + file);
+        }
+    }
+
+    private File checkpointOf(String transferId) {
+        return new File(new File(mContext.getFilesDir(), TRANSFER_DIR), transferId);
+    }
+
+    /**
+     * Blocks until data is written and read back, don't call it from a GATT callback
+     *
+     * @param delayTimeMilliSec unused, chunks are paced by the GATT callbacks
+     * @param blockSize         0 for MTU - 3
+     */
+    public void writeLargeSafe(String characUuid,
+                               byte[] data,
+                               int delayTimeMilliSec,
+                               int blockSize,
+                               FioTBluetoothLE.SendListener listener) {
+        writeLargeSafe(characUuid, data, delayTimeMilliSec, blockSize, listener, null, 0);
+    }
+
+    /**
+     * @param progressListener throughput, rewrites and ETA at most once per interval, may be null
+     */
+    public void writeLargeSafe(String characUuid,
+                               byte[] data,
+                               int delayTimeMilliSec,
+                               int blockSize,
+                               FioTBluetoothLE.SendListener listener,
+                               ProgressListener progressListener,
+                               long intervalMillisec) {
+        try {
+            VerifiedWrite write = createVerifiedWrite(characUuid, ByteBuffer.wrap(data), VerifyPolicy.EVERY_CHUNK, blockSize);
+            write.setListener(listener);
+            write.setProgressListener(progressListener, intervalMillisec);
+            requestHandler.impl(ble);
+            write.start().await();
+        } catch (IncorrectState | CharacteristicNotFound e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void writeLargeSafe(String characUuid,
+                               byte[] data,
+                               int delayTimeMilliSec,
+                               FioTBluetoothLE.SendListener listener) {
+        writeLargeSafe(characUuid, data, delayTimeMilliSec, 0, listener);
+    }
+
+    /**
+     * Blocks until data is streamed, don't call it from a GATT callback
+     *
+     * @param delayTimeMilliSec unused, chunks are paced by the write callbacks
+     * @param blockSize         0 for MTU - 3
+     */
+    public void writeLargeFast(String characUuid,
+                               byte[] data,
+                               int delayTimeMilliSec,
+                               int blockSize) {
+        writeLargeFast(characUuid, data, delayTimeMilliSec, blockSize, null, 0);
+    }
+
+    /**
+     * @param progressListener throughput, retries and ETA at most once per interval, may be null
+     */
+    public void writeLargeFast(String characUuid,
+                               byte[] data,
+                               int delayTimeMilliSec,
+                               int blockSize,
+                               ProgressListener progressListener,
+                               long intervalMillisec) {
+        try {
+            WriteStream stream = encodedStream(characUuid, data, blockSize);
+            stream.setProgressListener(progressListener, intervalMillisec);
+            startStream(stream, null).getFuture().await();
+        } catch (IncorrectState | CharacteristicNotFound e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void writeLargeFast(String characUuid, byte[] data, int delayTimeMilliSec) {
+        writeLargeFast(characUuid, data, delayTimeMilliSec, 0);
+    }
+
+    private int blockSizeOf(int blockSize) {
+        return blockSize > 0 ? blockSize : dataChunk;
     }
 
-    public void read(String characUuid) {
+    /**
+     * Read characteristic through the request queue.
+     * Value is delivered to @onRead() of data listener and to the returned handle.
+     *
+     * @return handle of the read, null if characteristic can not be read
+     */
+    public RequestFuture read(String characUuid) {
+        return read(characUuid, RequestPriority.INTERACTIVE);
+    }
+
+    public RequestFuture read(String characUuid, RequestPriority priority) {
+        return read(characUuid, priority, 0);
+    }
+
+    /**
+     * @param timeToLiveMillisec the read expires with STATUS_EXPIRED if not sent within this
+     *                           time, 0 for no deadline
+     */
+    public RequestFuture read(String characUuid, RequestPriority priority, long timeToLiveMillisec) {
         Log.d(TAG, "read: ");
         BluetoothGattCharacteristic characteristic = getCharacteristic(characUuid).getCharacteristic();
         FioTBluetoothCharacteristic ch = getCharacteristic(characUuid);
@@ -269,8 +881,11 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
                     Log.d(TAG, "read: ");
                     RequestData requestData = new RequestData(characteristic, null);
                     Request request = new Request(RequestCmd.READ, requestData);
+                    request.setPriority(priority);
+                    request.setDeadline(deadlineOf(timeToLiveMillisec));
                     requestHandler.enqueue(request);
                     requestHandler.implRightNow(ble);
+                    return request.getFuture();
                 } else {
                     Log.e(TAG, "read: request handler is null");
                 }
@@ -280,6 +895,320 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
         } else {
             Log.e(TAG, "read: no exist characteristics");
         }
+
+        return null;
+    }
+
+    public RequestFuture readDescriptor(String characUuid, String descriptorUuid)
+            throws IncorrectState, CharacteristicNotFound {
+        BluetoothGattDescriptor descriptor = getDescriptor(characUuid, descriptorUuid);
+        return enqueue(RequestCmd.READ_DESCRIPTOR, new RequestData(descriptor, null), RequestPriority.CONTROL);
+    }
+
+    public RequestFuture writeDescriptor(String characUuid, String descriptorUuid, byte[] value)
+            throws IncorrectState, CharacteristicNotFound {
+        BluetoothGattDescriptor descriptor = getDescriptor(characUuid, descriptorUuid);
+        return enqueue(RequestCmd.WRITE_DESCRIPTOR, new RequestData(descriptor, value), RequestPriority.CONTROL);
+    }
+
+    /**
+     * Read RSSI through the request queue.
+     * Value is delivered to @onReadRSSI() of data listener and to the returned handle.
+     */
+    public RequestFuture readRSSI() throws IncorrectState {
+        return enqueue(RequestCmd.READ_RSSI, new RequestData(), RequestPriority.INTERACTIVE);
+    }
+
+    /**
+     * MTU asked for right after connecting, 0 to keep 23. Default is 517, the largest
+     * Android accepts, the peripheral answers with what it supports.
+     */
+    public void setPreferredMtu(int preferredMtu) {
+        this.preferredMtu = preferredMtu;
+    }
+
+    /**
+     * @return ATT MTU of the connection, 23 until a larger one is negotiated
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return bytes per packet of chunked writes, MTU - 3
+     */
+    public int getMaxWritePayload() {
+        return dataChunk;
+    }
+
+    /**
+     * Compress writeStream() and writeLargeFast() of arrays with codec, null to send them as
+     * they are. Only set a codec the peripheral decodes, e.g. from negotiateCodec(). Progress
+     * of those writes counts encoded bytes. The codec set before is released.
+     */
+    public void setPayloadCodec(PayloadCodec codec) {
+        PayloadCodec old = getPayloadCodec();
+
+        payloadEncoder = codec != null ? new PayloadEncoder(codec) : null;
+
+        if (old != null && old != codec) {
+            old.release();
+        }
+    }
+
+    public PayloadCodec getPayloadCodec() {
+        PayloadEncoder encoder = payloadEncoder;
+        return encoder != null ? encoder.getCodec() : null;
+    }
+
+    /**
+     * Read the codecs the peripheral decodes, bit N of the first byte for codec id N, and
+     * use the first of codecs it supports. Codecs not used are released.
+     *
+     * @param codecs in order of preference
+     * @return handle of the read, null if characteristic can not be read
+     */
+    public RequestFuture negotiateCodec(String characUuid, final PayloadCodec... codecs) {
+        RequestFuture future = read(characUuid, RequestPriority.CONTROL);
+
+        if (future != null) {
+            future.addCallback(new RequestFuture.Callback() {
+                @Override
+                public void onComplete(RequestFuture future) {
+                    byte[] capabilities = future.isSuccess() ? future.getValue() : null;
+                    PayloadCodec selected = PayloadCodec.select(capabilities, codecs);
+
+                    for (PayloadCodec codec : codecs) {
+                        if (codec != selected) {
+                            codec.release();
+                        }
+                    }
+
+                    Log.i(TAG, "negotiateCodec: " + (selected != null ? "codec " + selected.getId() : "none"));
+                    setPayloadCodec(selected);
+                }
+            });
+        }
+
+        return future;
+    }
+
+    private void setMtu(int mtu) {
+        this.mtu = mtu;
+        this.dataChunk = Math.min(mtu - ATT_HEADER_SIZE, MAX_ATTRIBUTE_SIZE);
+        requestHandler.setMaxWritePayload(dataChunk);
+    }
+
+    /**
+     * @return handle of the MTU exchange, null if not wanted or not supported
+     */
+    private RequestFuture negotiateMtu() {
+        if (preferredMtu <= DEFAULT_MTU || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+
+        try {
+            return requestMtu(Math.min(preferredMtu, MAX_MTU));
+        } catch (IncorrectState incorrectState) {
+            incorrectState.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Request ATT MTU, fails on Android older than Lollipop.
+     * Chunked writes use the new MTU once the exchange completes.
+     */
+    public RequestFuture requestMtu(int mtu) throws IncorrectState {
+        RequestData requestData = new RequestData();
+        requestData.setMtu(mtu);
+        return enqueue(RequestCmd.REQUEST_MTU, requestData, RequestPriority.CONTROL);
+    }
+
+    /**
+     * Set preferred PHY, fails on Android older than Oreo
+     *
+     * @param txPhy      BluetoothDevice.PHY_LE_1M_MASK, PHY_LE_2M_MASK or PHY_LE_CODED_MASK
+     * @param rxPhy      BluetoothDevice.PHY_LE_1M_MASK, PHY_LE_2M_MASK or PHY_LE_CODED_MASK
+     * @param phyOptions BluetoothDevice.PHY_OPTION_NO_PREFERRED, PHY_OPTION_S2 or PHY_OPTION_S8
+     */
+    public RequestFuture setPreferredPhy(int txPhy, int rxPhy, int phyOptions) throws IncorrectState {
+        RequestData requestData = new RequestData();
+        requestData.setPhy(txPhy, rxPhy, phyOptions);
+        return enqueue(RequestCmd.SET_PREFERRED_PHY, requestData, RequestPriority.CONTROL);
+    }
+
+    /**
+     * Read current PHY, fails on Android older than Oreo
+     */
+    public RequestFuture readPhy() throws IncorrectState {
+        return enqueue(RequestCmd.READ_PHY, new RequestData(), RequestPriority.CONTROL);
+    }
+
+    /**
+     * Request connection priority, fails on Android older than Lollipop.
+     * Completes once requested, the connection interval changes later.
+     *
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_BALANCED, _HIGH or _LOW_POWER
+     */
+    public RequestFuture requestConnectionPriority(int priority) throws IncorrectState {
+        RequestData requestData = new RequestData();
+        requestData.setConnectionPriority(priority);
+        return enqueue(RequestCmd.REQUEST_CONNECTION_PRIORITY, requestData, RequestPriority.CONTROL);
+    }
+
+    /**
+     * Write several characteristics as one reliable write transaction
+     *
+     * @param values characteristic UUID to value in write order, e.g. a LinkedHashMap.
+     *               A value must fit one prepared write, MTU - 5 bytes.
+     */
+    public RequestFuture reliableWrite(Map<String, byte[]> values) throws IncorrectState, CharacteristicNotFound {
+        ReliableWrite reliableWrite = new ReliableWrite();
+
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            FioTBluetoothCharacteristic ch = getCharacteristic(entry.getKey());
+
+            if (ch == null) {
+                throw new CharacteristicNotFound(mContext.getResources().
+                        getString(R.string.exception_characteristic_not_found) +
+                        entry.getKey());
+            }
+            if (!ch.isWriteable()) {
+                throw new CharacteristicNotFound(mContext.getResources().
+                        getString(R.string.exception_characteristic_do_not_have_property_write) +
+                        entry.getKey());
+            }
+
+            reliableWrite.add(ch.getCharacteristic(), entry.getValue().clone());
+        }
+
+        RequestData requestData = new RequestData();
+        requestData.setReliableWrite(reliableWrite);
+        return enqueue(RequestCmd.RELIABLE_WRITE, requestData, RequestPriority.INTERACTIVE);
+    }
+
+    /**
+     * Step by step reliable write: beginReliableWrite(), write(), then executeReliableWrite()
+     * or abortReliableWrite(). They share the INTERACTIVE lane so they run in the order called,
+     * but requests of other lanes may run in between, prefer reliableWrite().
+     */
+    public RequestFuture beginReliableWrite() throws IncorrectState {
+        return enqueue(RequestCmd.BEGIN_RELIABLE_WRITE, new RequestData(), RequestPriority.INTERACTIVE);
+    }
+
+    public RequestFuture executeReliableWrite() throws IncorrectState {
+        return enqueue(RequestCmd.EXECUTE_RELIABLE_WRITE, new RequestData(), RequestPriority.INTERACTIVE);
+    }
+
+    public RequestFuture abortReliableWrite() throws IncorrectState {
+        return enqueue(RequestCmd.ABORT_RELIABLE_WRITE, new RequestData(), RequestPriority.INTERACTIVE);
+    }
+
+    private RequestFuture enqueue(RequestCmd cmd, RequestData requestData, RequestPriority priority)
+            throws IncorrectState {
+        if (ble == null) {
+            throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
+        }
+
+        Request request = new Request(cmd, requestData);
+        request.setPriority(priority);
+        requestHandler.enqueue(request);
+        requestHandler.implRightNow(ble);
+        return request.getFuture();
+    }
+
+    private BluetoothGattDescriptor getDescriptor(String characUuid, String descriptorUuid)
+            throws IncorrectState, CharacteristicNotFound {
+        if (ble == null) {
+            throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
+        }
+
+        FioTBluetoothCharacteristic ch = getCharacteristic(characUuid);
+
+        if (ch == null || ch.getCharacteristic() == null) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_characteristic_not_found) +
+                    characUuid);
+        }
+
+        BluetoothGattDescriptor descriptor = ch.getCharacteristic().getDescriptor(UUID.fromString(descriptorUuid));
+
+        if (descriptor == null) {
+            throw new CharacteristicNotFound(mContext.getResources().
+                    getString(R.string.exception_descriptor_not_found) +
+                    descriptorUuid);
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Merge small queued writes to the same characteristic into MTU - 3 sized packets.
+     * Off by default, only enable it if the peripheral treats the characteristic as a byte stream.
+     */
+    public void setWriteCoalescing(boolean enable) {
+        requestHandler.setWriteCoalescing(enable);
+    }
+
+    /**
+     * Let a read that completed less than millisec ago answer new reads of the same
+     * characteristic without a radio round trip. 0, the default, always reads the peripheral.
+     */
+    public void setReadFreshness(long millisec) {
+        requestHandler.setReadFreshness(millisec);
+    }
+
+    /**
+     * Cancel every queued request written with this tag, e.g. a stale transfer.
+     * Other requests are kept.
+     */
+    public void cancelRequests(Object tag) {
+        requestHandler.cancel(tag);
+    }
+
+    /**
+     * Retry budget and backoff of transient failures (status 133, busy stack...) of one
+     * operation type. Every operation but reliable write retries 3 times by default.
+     */
+    public void setRetryPolicy(RequestCmd cmd, RetryPolicy policy) {
+        requestHandler.setRetryPolicy(cmd, policy);
+    }
+
+    /**
+     * Bound the request queue, 0 means unlimited (the default). Under OverflowPolicy.BLOCK
+     * don't call write() or read() from the main thread or a listener callback.
+     *
+     * @param maxRequests requests queued or in flight, a chunk of a large write counts as one
+     * @param maxBytes    payload bytes of queued writes
+     */
+    public void setQueueCapacity(int maxRequests, long maxBytes, OverflowPolicy policy) {
+        requestHandler.setCapacity(maxRequests, maxBytes, policy);
+    }
+
+    /**
+     * Get told when the bounded queue fills up and when it has room again
+     */
+    public void setQueueListener(RequestQueueListener listener) {
+        requestHandler.setQueueListener(listener);
+    }
+
+    /**
+     * Counters of the request queue: dispatched, retried, expired...
+     */
+    public RequestMetrics getRequestMetrics() {
+        return requestHandler.getMetrics();
+    }
+
+    private static long deadlineOf(long timeToLiveMillisec) {
+        return timeToLiveMillisec > 0 ? SystemClock.elapsedRealtime() + timeToLiveMillisec : 0;
+    }
+
+    /**
+     * @return number of requests queued or in flight
+     */
+    public int getQueueDepth() {
+        return requestHandler.getDepth();
     }
 
     public boolean isConnected() {
@@ -321,7 +1250,21 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
         return ch;
     }
 
-    public void enableNotification(String characteristicUUID) throws IncorrectState, CharacteristicNotFound {
+    /**
+     * Enable notification through the request queue
+     *
+     * @return handle of the CCCD write, null if the characteristic has no CCCD
+     */
+    public RequestFuture enableNotification(String characteristicUUID) throws IncorrectState, CharacteristicNotFound {
+        return setNotification(characteristicUUID, true);
+    }
+
+    public RequestFuture disableNotification(String characteristicUUID) throws IncorrectState, CharacteristicNotFound {
+        return setNotification(characteristicUUID, false);
+    }
+
+    private RequestFuture setNotification(String characteristicUUID, boolean enable)
+            throws IncorrectState, CharacteristicNotFound {
         if (ble == null) {
             throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
         }
@@ -334,31 +1277,32 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
                     characteristicUUID);
         }
 
-        characteristic.setNotify(true);
-        ble.setNotification(getCharacteristic(characteristicUUID));
-    }
+        characteristic.setNotify(enable);
 
-    public void disableNotification(String characteristicUUID) throws IncorrectState, CharacteristicNotFound {
-        if (ble == null) {
-            throw new IncorrectState(mContext.getResources().getString(R.string.exception_icorrect_state));
-        }
-
-        FioTBluetoothCharacteristic characteristic = getCharacteristic(characteristicUUID);
+        BluetoothGattCharacteristic gattCharacteristic = characteristic.getCharacteristic();
+        BluetoothGattDescriptor cccd = gattCharacteristic != null ?
+                gattCharacteristic.getDescriptor(FioTBluetoothLE.CLIENT_CHARACTERISTIC_CONFIG) : null;
 
-        if (characteristic == null) {
-            throw new CharacteristicNotFound(mContext.getResources().
-                    getString(R.string.exception_characteristic_not_found) +
-                    characteristicUUID);
+        if (cccd == null) {
+            Log.e(TAG, "setNotification: no CCCD " + characteristicUUID);
+            return null;
         }
 
-        characteristic.setNotify(false);
-        ble.setNotification(getCharacteristic(characteristicUUID));
+        byte[] value = enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE :
+                BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        RequestData requestData = new RequestData(cccd, value);
+        requestData.setCharacteristic(gattCharacteristic);
+        return enqueue(RequestCmd.SET_NOTIFICATION, requestData, RequestPriority.CONTROL);
     }
 
     @Override
     public void onRead(BluetoothGattCharacteristic characteristic) {
-        requestHandler.dequeue();
-        requestHandler.impl(ble);
+        onRead(characteristic, BluetoothGatt.GATT_SUCCESS);
+    }
+
+    @Override
+    public void onRead(BluetoothGattCharacteristic characteristic, int status) {
+        requestHandler.onCharacteristicRead(ble, characteristic, copyOf(characteristic.getValue()), status);
 
         if (dataListener != null) {
             dataListener.onRead(getCharacteristic(characteristic));
@@ -386,16 +1330,24 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
     public void onGetSupportServiceComplete() {
         Log.i(TAG, "onGetSupportServiceComplete");
 
-        boolean hasCharacteristicsNeedEnableNotify = false;
+        List<RequestFuture> setups = new ArrayList<>();
+
+        /* Queued first so chunks are sized with the final MTU when connected is reported */
+        final RequestFuture mtuExchange = negotiateMtu();
+        if (mtuExchange != null) {
+            setups.add(mtuExchange);
+        }
 
         for (FioTBluetoothService service : services) {
             for (FioTBluetoothCharacteristic c : service.getCharacteristics()) {
                 c.setCharacteristic(ble.getCharacteristic(c.getUuid()));
                 if (c.isNotify()) {
                     Log.i(TAG, "onGetSupportServiceComplete: " + c.getUuid());
-                    hasCharacteristicsNeedEnableNotify = true;
                     try {
-                        enableNotification(c.getUuid());
+                        RequestFuture future = enableNotification(c.getUuid());
+                        if (future != null) {
+                            setups.add(future);
+                        }
                     } catch (IncorrectState incorrectState) {
                         incorrectState.printStackTrace();
                     } catch (CharacteristicNotFound characteristicNotFound) {
@@ -405,8 +1357,28 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
             }
         }
 
+        /* Connected once every CCCD is written, they go through the queue one after the other.
+         * The peripheral may refuse a larger MTU, that doesn't fail the connection. */
+        if (!setups.isEmpty()) {
+            final AtomicInteger remaining = new AtomicInteger(setups.size());
+            RequestFuture.Callback callback = new RequestFuture.Callback() {
+                @Override
+                public void onComplete(RequestFuture future) {
+                    if (!future.isSuccess() && future != mtuExchange) {
+                        onConnectResult(FioTBluetoothLE.CONNECT_FAIL, future.getStatus());
+                    } else if (remaining.decrementAndGet() == 0) {
+                        onStartListenNotificationComplete();
+                    }
+                }
+            };
+
+            for (RequestFuture future : setups) {
+                future.addCallback(callback);
+            }
+        }
+
         /* No characteristic need enable notify */
-        if (!hasCharacteristicsNeedEnableNotify) {
+        if (setups.isEmpty()) {
             synchronized (connectionStatus) {
                 connectionStatus = Connected;
                 stopConnectTimeout();
@@ -459,17 +1431,60 @@ public class FioTManager implements FioTBluetoothLE.BluetoothLEListener, FioTBlu
     @Override
     public void onDidWrite(BluetoothGattCharacteristic cha, int status) {
         Log.i(TAG, "onDidWrite: " + status + " - " + cha.getUuid().toString());
-        requestHandler.dequeue();
-        requestHandler.impl(ble);
+        requestHandler.onCharacteristicWrite(ble, cha, status);
     }
 
     @Override
     public void onReadRemoteRSSI(int rssi, int status) {
+        requestHandler.onReadRemoteRssi(ble, rssi, status);
+
         if (dataListener != null) {
             dataListener.onReadRSSI(rssi);
         }
     }
 
+    @Override
+    public void onDescriptorRead(BluetoothGattDescriptor descriptor, int status) {
+        requestHandler.onDescriptorRead(ble, descriptor, copyOf(descriptor.getValue()), status);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        requestHandler.onDescriptorWrite(ble, descriptor, status);
+    }
+
+    @Override
+    public void onReliableWriteCompleted(int status) {
+        requestHandler.onReliableWriteCompleted(ble, status);
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        Log.i(TAG, "onMtuChanged: " + mtu + ", status " + status);
+
+        /* Before completing the request so writes queued from its callback use the new size */
+        if (status == BluetoothGatt.GATT_SUCCESS && mtu >= DEFAULT_MTU) {
+            setMtu(mtu);
+        }
+
+        requestHandler.onMtuChanged(ble, mtu, status);
+    }
+
+    @Override
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        requestHandler.onPhyUpdate(ble, txPhy, rxPhy, status);
+    }
+
+    @Override
+    public void onPhyRead(int txPhy, int rxPhy, int status) {
+        requestHandler.onPhyRead(ble, txPhy, rxPhy, status);
+    }
+
+    /* Stack reuses value array of characteristic, keep a copy for the request handle */
+    private static byte[] copyOf(byte[] value) {
+        return value == null ? null : value.clone();
+    }
+
     /**
      * Callback after register to receive notification from characteristics.
      * After this event the setup ble connection is completed.
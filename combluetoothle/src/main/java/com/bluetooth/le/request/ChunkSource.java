@@ -0,0 +1,17 @@
+package com.bluetooth.le.request;
+
+import java.io.IOException;
+
+/**
+ * Data of a {@link WriteStream} read a chunk at a time, see {@link ChunkSources}.
+ * Called on the GATT callback thread, reads must be short.
+ */
+public interface ChunkSource {
+    /**
+     * Same contract as InputStream.read(), fewer bytes than length is fine. Blocks until
+     * some bytes are there, e.g. a channel must be in blocking mode.
+     *
+     * @return bytes read, -1 (or 0) at the end of the data
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+}
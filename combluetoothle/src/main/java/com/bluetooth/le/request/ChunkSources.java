@@ -0,0 +1,56 @@
+package com.bluetooth.le.request;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Sources of large writes that don't hold the data on the heap.
+ */
+public final class ChunkSources {
+    private ChunkSources() {
+    }
+
+    /**
+     * The caller closes stream once the stream's future completes
+     */
+    public static ChunkSource of(final InputStream stream) {
+        return new ChunkSource() {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return stream.read(buffer, offset, length);
+            }
+        };
+    }
+
+    /**
+     * The caller closes channel once the stream's future completes
+     */
+    public static ChunkSource of(final ReadableByteChannel channel) {
+        return new ChunkSource() {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return channel.read(ByteBuffer.wrap(buffer, offset, length));
+            }
+        };
+    }
+
+    /**
+     * Map file read only. The mapping stays valid after this returns, the file is closed.
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
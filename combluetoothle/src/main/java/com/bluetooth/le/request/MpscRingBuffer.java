@@ -0,0 +1,79 @@
+package com.bluetooth.le.request;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer for many producers and one consumer.
+ * <p>
+ * Producers claim a slot by CAS on the producer index then publish the element,
+ * the consumer owns the consumer index. Size is the distance between both indexes, O(1).
+ */
+final class MpscRingBuffer<E> {
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        buffer = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Called by any thread
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(E e) {
+        long capacity = mask + 1;
+
+        for (;;) {
+            long p = producerIndex.get();
+
+            if (p - consumerIndex.get() >= capacity) {
+                return false;
+            }
+
+            if (producerIndex.compareAndSet(p, p + 1)) {
+                buffer.lazySet((int) (p & mask), e);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Called by the consumer only. May return null while a producer that already claimed
+     * the next slot has not published its element yet, the producer signals the consumer
+     * again after publishing.
+     */
+    E poll() {
+        long c = consumerIndex.get();
+        int offset = (int) (c & mask);
+        E e = buffer.get(offset);
+
+        if (e == null) {
+            return null;
+        }
+
+        buffer.lazySet(offset, null);
+        consumerIndex.lazySet(c + 1);
+        return e;
+    }
+
+    int size() {
+        return (int) (producerIndex.get() - consumerIndex.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean isFull() {
+        return size() > mask;
+    }
+}
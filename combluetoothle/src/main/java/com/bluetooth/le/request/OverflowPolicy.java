@@ -0,0 +1,15 @@
+package com.bluetooth.le.request;
+
+/**
+ * What RequestHandler does with a new request when the queue is at capacity
+ */
+public enum OverflowPolicy {
+    /* Caller waits until there is room, never use it from a GATT or main thread callback */
+    BLOCK,
+    /* Request is refused, enqueue returns false and its future fails with STATUS_REJECTED */
+    FAIL_FAST,
+    /* Oldest pending request is dropped with STATUS_DROPPED to make room */
+    DROP_OLDEST,
+    /* New request is dropped, enqueue returns false and its future fails with STATUS_DROPPED */
+    DROP_NEWEST
+}
@@ -0,0 +1,10 @@
+package com.bluetooth.le.request;
+
+/**
+ * Progress of a bulk transfer, see {@link TransferProgress}.
+ * Called on the GATT callback thread at most once per interval and once when the transfer
+ * ends, post to the UI thread from here.
+ */
+public interface ProgressListener {
+    void onProgress(TransferProgress progress);
+}
@@ -0,0 +1,180 @@
+package com.bluetooth.le.request;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Measures a bulk transfer for its {@link ProgressListener}. Chunks are acknowledged in
+ * the order they were started, so their start times wait in a ring of LATENCY_SAMPLES.
+ * Percentiles are taken over the last LATENCY_SAMPLES chunks, sorted only when a report
+ * is due.
+ */
+class ProgressTracker {
+    private static final int LATENCY_SAMPLES = 256;
+
+    /* Shortest span the current throughput is measured over, one chunk is too noisy */
+    private static final long RATE_WINDOW_NANOS = 250000000L;
+
+    private static final long NANOS_PER_MILLISEC = 1000000L;
+
+    private final long totalBytes;
+    private final long startNanos = SystemClock.elapsedRealtimeNanos();
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private final long[] started = new long[LATENCY_SAMPLES];
+    private int startedHead;
+    private int startedCount;
+    private long startBytes;
+    private long bytesAcknowledged;
+    private int retransmissions;
+    private long rateBytes;
+    private long rateNanos = startNanos;
+    private long throughput;
+    private long lastReportNanos;
+    private boolean done;
+    private ProgressListener listener;
+    private long intervalNanos;
+
+    /**
+     * @param totalBytes -1 if unknown
+     */
+    ProgressTracker(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    synchronized void setListener(ProgressListener listener, long intervalMillisec) {
+        this.listener = listener;
+        this.intervalNanos = Math.max(0, intervalMillisec) * NANOS_PER_MILLISEC;
+    }
+
+    /**
+     * Bytes acknowledged before the transfer started, e.g. by a resumed transfer,
+     * they don't count in the throughput
+     */
+    synchronized void setStartBytes(long bytes) {
+        startBytes = bytes;
+        bytesAcknowledged = bytes;
+        rateBytes = bytes;
+    }
+
+    synchronized void onChunkStarted() {
+        /* Chunks never acknowledged, e.g. written again after a failed check, give way */
+        if (startedCount == started.length) {
+            startedHead = (startedHead + 1) % started.length;
+            startedCount--;
+        }
+
+        started[(startedHead + startedCount++) % started.length] = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @param bytes acknowledged since the transfer started, resumed bytes included
+     */
+    void onChunkAcknowledged(long bytes) {
+        TransferProgress progress;
+        ProgressListener listener;
+
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtimeNanos();
+
+            if (startedCount > 0) {
+                latencies[latencyCount++ % LATENCY_SAMPLES] = now - started[startedHead];
+                startedHead = (startedHead + 1) % started.length;
+                startedCount--;
+            }
+
+            bytesAcknowledged = bytes;
+
+            listener = this.listener;
+            if (listener == null || done || now - lastReportNanos < intervalNanos) {
+                return;
+            }
+
+            lastReportNanos = now;
+            progress = snapshot(now);
+        }
+
+        listener.onProgress(progress);
+    }
+
+    /**
+     * Chunks are sent again, their start times are those of the first attempt
+     */
+    synchronized void onRetransmission(int chunks) {
+        retransmissions += chunks;
+    }
+
+    /**
+     * Last report, whatever the interval
+     */
+    void onDone(long bytes) {
+        TransferProgress progress;
+        ProgressListener listener;
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            done = true;
+            bytesAcknowledged = bytes;
+
+            listener = this.listener;
+            if (listener == null) {
+                return;
+            }
+
+            progress = snapshot(SystemClock.elapsedRealtimeNanos());
+        }
+
+        listener.onProgress(progress);
+    }
+
+    /* Called with the lock held */
+    private TransferProgress snapshot(long now) {
+        long elapsed = now - startNanos;
+
+        if (now - rateNanos >= RATE_WINDOW_NANOS) {
+            throughput = perSecond(bytesAcknowledged - rateBytes, now - rateNanos);
+            rateBytes = bytesAcknowledged;
+            rateNanos = now;
+        }
+
+        long average = perSecond(bytesAcknowledged - startBytes, elapsed);
+        long rate = throughput > 0 ? throughput : average;
+        long remaining = totalBytes - bytesAcknowledged;
+        long eta = totalBytes < 0 ? -1 : remaining <= 0 ? 0 :
+                !done && rate > 0 ? remaining * 1000 / rate : -1;
+
+        return new TransferProgress(bytesAcknowledged,
+                totalBytes,
+                elapsed / NANOS_PER_MILLISEC,
+                done && throughput == 0 ? average : throughput,
+                average,
+                retransmissions,
+                eta,
+                latencyPercentiles(),
+                done);
+    }
+
+    /* Called with the lock held */
+    private long[] latencyPercentiles() {
+        int count = Math.min(latencyCount, LATENCY_SAMPLES);
+        long[] percentiles = new long[3];
+
+        if (count > 0) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            percentiles[0] = sorted[(count - 1) * 50 / 100] / 1000;
+            percentiles[1] = sorted[(count - 1) * 90 / 100] / 1000;
+            percentiles[2] = sorted[(count - 1) * 99 / 100] / 1000;
+        }
+
+        return percentiles;
+    }
+
+    private static long perSecond(long bytes, long nanos) {
+        return nanos > 0 ? bytes * 1000000000L / nanos : 0;
+    }
+}
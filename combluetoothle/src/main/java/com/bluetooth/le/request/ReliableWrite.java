@@ -0,0 +1,58 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values written as one reliable write transaction, all committed by one execute or none.
+ * Each value must fit one prepared write, MTU - 5 bytes.
+ */
+public class ReliableWrite {
+    private final List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private int totalBytes;
+    /* Part being prepared, advanced by the GATT callbacks one after the other */
+    private volatile int index;
+
+    public void add(BluetoothGattCharacteristic characteristic, byte[] value) {
+        characteristics.add(characteristic);
+        values.add(value);
+        totalBytes += value.length;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    List<BluetoothGattCharacteristic> getCharacteristics() {
+        return characteristics;
+    }
+
+    int getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Start again from the first value, e.g. for a retry
+     */
+    void rewind() {
+        index = 0;
+    }
+
+    /**
+     * @return false if every value is prepared
+     */
+    boolean advance() {
+        return ++index < values.size();
+    }
+
+    BluetoothGattCharacteristic getCharacteristic() {
+        return characteristics.get(index);
+    }
+
+    byte[] getValue() {
+        return values.get(index);
+    }
+}
@@ -1,16 +1,123 @@
 package com.bluetooth.le.request;
 
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by caoxuanphong on 1/3/18.
+ * <p>
+ * Requests from obtain() come from a small pool and go back to it once completed,
+ * like android.os.Message, so queuing the chunks of a transfer doesn't allocate.
  */
 
 public class Request {
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Object poolLock = new Object();
+    private static Request pool;
+    private static int poolSize;
+
     private RequestCmd cmd;
     private RequestData data;
+    private RequestFuture future;
+    private RequestPriority priority = RequestPriority.INTERACTIVE;
+    /* Lets the app cancel a group of requests, e.g. every chunk of one transfer */
+    private Object tag;
+    /* SystemClock.elapsedRealtime() after which the request is worthless, 0 for none */
+    private long deadline;
+    /* A read that goes to the radio, never answered from the cache or joined to another read */
+    private boolean bypassCache;
+    /* Coalesced writes or duplicate reads, they complete together with this one */
+    private List<Request> merged;
+    private boolean finished;
+    /* Bumped every time the request goes back to the pool */
+    private int generation;
+    /* Set by RequestHandler */
+    private long sequence;
+    private int queuedBytes;
+    private int result;
+    private int retries;
+    /* SystemClock.elapsedRealtime() before which a retry must not start, 0 for none */
+    private long notBefore;
+    /* Pool bookkeeping, guarded by poolLock */
+    private boolean pooled;
+    private boolean inPool;
+    private Request next;
+
+    /**
+     * Take a request from the pool. It belongs to RequestHandler once enqueued,
+     * don't touch it after enqueue() returns.
+     *
+     * @param data   payload, not copied, must not change until the future completes
+     * @param future shared handle, e.g. one future for all chunks of a large write
+     */
+    public static Request obtain(RequestCmd cmd,
+                                 BluetoothGattCharacteristic characteristic,
+                                 byte[] data,
+                                 int offset,
+                                 int length,
+                                 RequestFuture future) {
+        Request request = obtain(cmd, characteristic, future);
+        request.data.setData(data, offset, length);
+        return request;
+    }
+
+    /**
+     * Same as obtain() with an array, length bytes of buffer from index are the payload.
+     * Direct and mapped buffers are copied only when the request is sent.
+     *
+     * @param buffer shared by the chunks of a transfer, its position and limit are not used
+     */
+    public static Request obtain(RequestCmd cmd,
+                                 BluetoothGattCharacteristic characteristic,
+                                 ByteBuffer buffer,
+                                 int index,
+                                 int length,
+                                 RequestFuture future) {
+        Request request = obtain(cmd, characteristic, future);
+        request.data.setData(buffer, index, length);
+        return request;
+    }
+
+    private static Request obtain(RequestCmd cmd,
+                                  BluetoothGattCharacteristic characteristic,
+                                  RequestFuture future) {
+        Request request = null;
+
+        synchronized (poolLock) {
+            if (pool != null) {
+                request = pool;
+                pool = request.next;
+                request.next = null;
+                request.inPool = false;
+                poolSize--;
+            }
+        }
+
+        if (request == null) {
+            request = new Request(cmd, new RequestData(), future);
+            request.pooled = true;
+        }
+
+        request.cmd = cmd;
+        request.future = future;
+        request.data.setCharacteristic(characteristic);
+        return request;
+    }
 
     public Request(RequestCmd cmd, RequestData data) {
+        this(cmd, data, new RequestFuture(cmd));
+    }
+
+    /**
+     * @param future shared handle, e.g. one future for all chunks of a large write
+     */
+    public Request(RequestCmd cmd, RequestData data, RequestFuture future) {
         this.cmd = cmd;
         this.data = data;
+        this.future = future;
     }
 
     public RequestCmd getCmd() {
@@ -28,4 +135,176 @@ public class Request {
     public void setData(RequestData data) {
         this.data = data;
     }
+
+    public RequestFuture getFuture() {
+        return future;
+    }
+
+    public RequestPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(RequestPriority priority) {
+        this.priority = priority;
+    }
+
+    public Object getTag() {
+        return tag;
+    }
+
+    public void setTag(Object tag) {
+        this.tag = tag;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Drop the request with STATUS_EXPIRED if it hasn't reached the radio at this time.
+     * Requests with a deadline go ahead of the others of their priority, earliest first.
+     *
+     * @param deadline SystemClock.elapsedRealtime() based, 0 for none
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public boolean isBypassCache() {
+        return bypassCache;
+    }
+
+    /**
+     * Read the value from the peripheral even if the read freshness window of RequestHandler
+     * would answer it, e.g. a status that changes without being written. Its value is not cached.
+     */
+    public void setBypassCache(boolean bypassCache) {
+        this.bypassCache = bypassCache;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    void setQueuedBytes(int queuedBytes) {
+        this.queuedBytes = queuedBytes;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    long getNotBefore() {
+        return notBefore;
+    }
+
+    void setNotBefore(long notBefore) {
+        this.notBefore = notBefore;
+    }
+
+    int getResult() {
+        return result;
+    }
+
+    void setResult(int result) {
+        this.result = result;
+    }
+
+    /**
+     * @return bytes this request holds in the queue
+     */
+    int getPayloadSize() {
+        if (data == null) {
+            return 0;
+        }
+
+        ReliableWrite reliableWrite = data.getReliableWrite();
+        return reliableWrite != null ? reliableWrite.getTotalBytes() : data.getLength();
+    }
+
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Attach a request that completes together with this one
+     *
+     * @param generation getGeneration() when this request was queued
+     * @return false if this request already completed, or was recycled since
+     */
+    synchronized boolean merge(Request other, int generation) {
+        if (finished || generation != this.generation) {
+            return false;
+        }
+
+        if (merged == null) {
+            merged = new ArrayList<>();
+        }
+
+        merged.add(other);
+        return true;
+    }
+
+    /**
+     * Mark completed, no request can be merged afterwards
+     *
+     * @return requests merged into this one, or null
+     */
+    synchronized List<Request> finish() {
+        finished = true;
+        return merged;
+    }
+
+    /**
+     * Give a request from obtain() back to the pool, other requests are ignored
+     */
+    void recycle() {
+        if (!pooled || inPool) {
+            return;
+        }
+
+        synchronized (this) {
+            if (merged != null) {
+                merged.clear();
+            }
+
+            finished = false;
+            generation++;
+        }
+
+        data.clear();
+        future = null;
+        priority = RequestPriority.INTERACTIVE;
+        tag = null;
+        deadline = 0;
+        bypassCache = false;
+        sequence = 0;
+        queuedBytes = 0;
+        result = 0;
+        retries = 0;
+        notBefore = 0;
+
+        synchronized (poolLock) {
+            if (inPool || poolSize >= MAX_POOL_SIZE) {
+                return;
+            }
+
+            inPool = true;
+            next = pool;
+            pool = this;
+            poolSize++;
+        }
+    }
 }
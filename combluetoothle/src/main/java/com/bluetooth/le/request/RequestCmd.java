@@ -6,5 +6,21 @@ package com.bluetooth.le.request;
 
 public enum  RequestCmd {
     READ,
-    WRITE
+    WRITE,
+    WRITE_NO_RESPONSE,
+    READ_DESCRIPTOR,
+    WRITE_DESCRIPTOR,
+    /* setCharacteristicNotification then CCCD write */
+    SET_NOTIFICATION,
+    READ_RSSI,
+    REQUEST_MTU,
+    SET_PREFERRED_PHY,
+    READ_PHY,
+    EXECUTE_RELIABLE_WRITE,
+    /* Whole transaction: begin, prepared writes, execute */
+    RELIABLE_WRITE,
+    /* No GATT callback, complete once started */
+    REQUEST_CONNECTION_PRIORITY,
+    BEGIN_RELIABLE_WRITE,
+    ABORT_RELIABLE_WRITE
 }
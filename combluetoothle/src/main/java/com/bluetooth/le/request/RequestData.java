@@ -1,18 +1,41 @@
 package com.bluetooth.le.request;
 
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.nio.ByteBuffer;
 
 /**
  * Created by caoxuanphong on 1/3/18.
+ * <p>
+ * The payload is a slice of an array or of a ByteBuffer, so chunks share the caller's data.
  */
 
 public class RequestData {
     private BluetoothGattCharacteristic characteristic;
+    private BluetoothGattDescriptor descriptor;
     private byte[] data;
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private int mtu;
+    private int txPhy;
+    private int rxPhy;
+    private int phyOptions;
+    private int connectionPriority;
+    private ReliableWrite reliableWrite;
+
+    public RequestData() {
+    }
 
     public RequestData(BluetoothGattCharacteristic characteristic, byte[] data) {
         this.characteristic = characteristic;
-        this.data = data;
+        setData(data);
+    }
+
+    public RequestData(BluetoothGattDescriptor descriptor, byte[] data) {
+        this.descriptor = descriptor;
+        setData(data);
     }
 
     public BluetoothGattCharacteristic getCharacteristic() {
@@ -23,11 +46,128 @@ public class RequestData {
         this.characteristic = characteristic;
     }
 
+    public BluetoothGattDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public void setDescriptor(BluetoothGattDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * @return backing array of the payload, see getOffset() and getLength(),
+     * null if the payload is in a ByteBuffer
+     */
     public byte[] getData() {
         return data;
     }
 
+    /**
+     * @return direct or mapped buffer holding the payload from getOffset(), null for an array
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the payload is the whole backing array
+     */
+    public boolean isWholeArray() {
+        return buffer == null && (data == null || (offset == 0 && length == data.length));
+    }
+
     public void setData(byte[] data) {
+        setData(data, 0, data != null ? data.length : 0);
+    }
+
+    /**
+     * Use length bytes of data from offset as payload, data is not copied
+     */
+    public void setData(byte[] data, int offset, int length) {
         this.data = data;
+        this.buffer = null;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Use length bytes of buffer from index as payload. A heap buffer is used as an array
+     * slice, other buffers are read when the request is sent. Position and limit are ignored.
+     */
+    public void setData(ByteBuffer buffer, int index, int length) {
+        if (buffer.hasArray()) {
+            setData(buffer.array(), buffer.arrayOffset() + index, length);
+            return;
+        }
+
+        this.data = null;
+        this.buffer = buffer;
+        this.offset = index;
+        this.length = length;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public int getPhyOptions() {
+        return phyOptions;
+    }
+
+    public void setPhy(int txPhy, int rxPhy, int phyOptions) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        this.phyOptions = phyOptions;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    public void setConnectionPriority(int connectionPriority) {
+        this.connectionPriority = connectionPriority;
+    }
+
+    public ReliableWrite getReliableWrite() {
+        return reliableWrite;
+    }
+
+    public void setReliableWrite(ReliableWrite reliableWrite) {
+        this.reliableWrite = reliableWrite;
+    }
+
+    void clear() {
+        characteristic = null;
+        descriptor = null;
+        data = null;
+        buffer = null;
+        offset = 0;
+        length = 0;
+        mtu = 0;
+        txPhy = 0;
+        rxPhy = 0;
+        phyOptions = 0;
+        connectionPriority = 0;
+        reliableWrite = null;
     }
 }
@@ -0,0 +1,205 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle to the outcome of one queued GATT operation, or of every chunk of a large write.
+ * Callbacks run on the thread that completes it, usually the GATT callback thread.
+ */
+public class RequestFuture {
+    /* Refused by a full queue, see OverflowPolicy.FAIL_FAST */
+    public static final int STATUS_REJECTED = -1;
+    /* Discarded by a full queue, see OverflowPolicy.DROP_OLDEST and DROP_NEWEST */
+    public static final int STATUS_DROPPED = -2;
+    /* Cancelled by the app, see cancel() */
+    public static final int STATUS_CANCELLED = -3;
+    /* Value read back from the peripheral differs from the one written */
+    public static final int STATUS_VERIFY_FAILED = -4;
+    /* Deadline passed before the request reached the radio, see Request.setDeadline() */
+    public static final int STATUS_EXPIRED = -5;
+    /* Reading the data to send failed, see ChunkSource */
+    public static final int STATUS_SOURCE_ERROR = -6;
+
+    public interface Callback {
+        void onComplete(RequestFuture future);
+    }
+
+    private final RequestCmd cmd;
+    private final CountDownLatch doneSignal = new CountDownLatch(1);
+    private final List<Callback> callbacks = new ArrayList<>();
+    private int remainingParts;
+    private boolean done;
+    private volatile int status = BluetoothGatt.GATT_SUCCESS;
+    private volatile byte[] value;
+    private volatile int rssi;
+    private volatile int mtu;
+    private volatile int txPhy;
+    private volatile int rxPhy;
+
+    public RequestFuture(RequestCmd cmd) {
+        this(cmd, 1);
+    }
+
+    public RequestFuture(RequestCmd cmd, int parts) {
+        this.cmd = cmd;
+        this.remainingParts = parts;
+    }
+
+    public RequestCmd getCmd() {
+        return cmd;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public boolean isSuccess() {
+        return isDone() && status == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * @return GATT status of the operation or one of the STATUS_ constants,
+     * GATT_SUCCESS while pending
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return value of a characteristic or descriptor read
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    /**
+     * Block until the operation completes
+     */
+    public void await() throws InterruptedException {
+        doneSignal.await();
+    }
+
+    /**
+     * Block until the operation completes or timeout elapses
+     *
+     * @return true if completed
+     */
+    public boolean await(long timeoutMillisec) throws InterruptedException {
+        return doneSignal.await(timeoutMillisec, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Complete with STATUS_CANCELLED. Queued requests of this future are skipped, an
+     * operation already sent to the peripheral still runs but its result is ignored.
+     *
+     * @return false if the future was already done
+     */
+    public boolean cancel() {
+        return completePart(STATUS_CANCELLED);
+    }
+
+    public boolean isCancelled() {
+        return isDone() && status == STATUS_CANCELLED;
+    }
+
+    /**
+     * Register a callback, it's called right away if the future is already done
+     */
+    public void addCallback(Callback callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        callback.onComplete(this);
+    }
+
+    void setValue(byte[] value) {
+        this.value = value;
+    }
+
+    void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    void setPhy(int txPhy, int rxPhy) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    /**
+     * A request of this future failed and is queued again, for transfers that count
+     * retransmissions
+     */
+    void onRetry() {
+    }
+
+    /**
+     * One more part to complete, for producers that don't know the number of parts upfront
+     *
+     * @return false if the future is already done
+     */
+    synchronized boolean addPart() {
+        if (done) return false;
+
+        remainingParts++;
+        return true;
+    }
+
+    /**
+     * Complete one part of this future
+     *
+     * @return true if this call completed the whole future
+     */
+    boolean completePart(int status) {
+        List<Callback> toNotify;
+
+        synchronized (this) {
+            if (done) return false;
+
+            if (status == BluetoothGatt.GATT_SUCCESS && --remainingParts > 0) {
+                return false;
+            }
+
+            this.status = status;
+            done = true;
+            toNotify = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+
+        doneSignal.countDown();
+
+        for (Callback callback : toNotify) {
+            callback.onComplete(this);
+        }
+
+        return true;
+    }
+}
@@ -1,80 +1,1353 @@
 package com.bluetooth.le.request;
 
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.bluetooth.le.FioTBluetoothLE;
+import com.bluetooth.le.utils.TimeoutScheduler;
 
-import java.util.Queue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by caoxuanphong on 1/3/18.
+ * <p>
+ * Serialises GATT operations, one request in flight at a time. Producers hand requests over
+ * through a lock-free ring buffer, the thread that wins the wip counter drains it and starts
+ * the next request. Pending requests wait in one lane per {@link RequestPriority}.
  */
 
 public class RequestHandler {
     private static final String TAG = "RequestHandler";
-    private Queue<Request> requestQueue = new ConcurrentLinkedQueue<>();
-    private ReentrantLock lock = new ReentrantLock();
 
-    public synchronized void enqueue(Request request) {
-        lock.lock();
-        requestQueue.add(request);
-        lock.unlock();
+    /* Hand-off between producers and the dispatcher, it's drained on every enqueue */
+    private static final int INBOX_CAPACITY = 256;
+
+    /* Dispatches a non-empty lane may be passed over before it's served anyway */
+    private static final int MAX_BYPASS = 8;
+
+    /* ATT payload of the default 23 bytes MTU */
+    private static final int DEFAULT_WRITE_PAYLOAD = 20;
+
+    /* Largest attribute value, bigger slices are copied into a new array */
+    private static final int MAX_ATTRIBUTE_SIZE = 512;
+
+    /* Polling of a stack that refuses writes without response, 1 ms doubling up to this */
+    private static final int MAX_STACK_POLL_MILLISEC = 16;
+
+    /* Stack still refusing after this long is given up on */
+    private static final long STACK_BUSY_TIMEOUT_MILLISEC = 2000;
+
+    /* Delay before a request left out by enqueueInternal() is offered again */
+    static final long OFFER_RETRY_MILLISEC = 5;
+
+    /* Outcomes of admit() */
+    private static final int ADMITTED = 0;
+    private static final int REFUSED = 1;
+    private static final int DEFERRED = 2;
+
+    private final MpscRingBuffer<Request> inbox = new MpscRingBuffer<>(INBOX_CAPACITY);
+    /* Only touched by the thread that owns the drain loop */
+    private final RequestLane[] lanes;
+    private final int[] bypassed;
+    /* Requests to complete with their result once the drain loop is left */
+    private final List<Request> finished = new ArrayList<>();
+    /* Last READ queued for each characteristic, a WRITE or its completion clears it */
+    private final ConcurrentMap<BluetoothGattCharacteristic, PendingRead> lastRequests = new ConcurrentHashMap<>();
+    private final Map<BluetoothGattCharacteristic, CachedValue> readCache = new ConcurrentHashMap<>();
+    /* Two arrays per payload size to hand slices to the GATT API, only the dispatcher uses them */
+    private final byte[][][] payloadBuffers = new byte[MAX_ATTRIBUTE_SIZE + 1][][];
+    /* Characteristic or descriptor each of them was last set on */
+    private final Object[][] payloadOwners = new Object[MAX_ATTRIBUTE_SIZE + 1][];
+    /* View of the last direct buffer sent from, read without moving the caller's position */
+    private ByteBuffer payloadSource;
+    private ByteBuffer payloadView;
+    private final AtomicReference<Request> inFlight = new AtomicReference<>();
+    private final RequestMetrics metrics = new RequestMetrics();
+    /* Requests failed in a GATT callback waiting to go back to their lane */
+    private final ConcurrentLinkedQueue<Request> retries = new ConcurrentLinkedQueue<>();
+    private final RetryPolicy[] retryPolicies = new RetryPolicy[RequestCmd.values().length];
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    /* Purges asked by any thread, run by the drain loop */
+    private final ConcurrentLinkedQueue<Purge> purges = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean resetRequested = new AtomicBoolean();
+    /* Set while the stack has no buffer for a write without response */
+    private final AtomicBoolean stackBusy = new AtomicBoolean();
+    private final Runnable stackPoll = new Runnable() {
+        @Override
+        public void run() {
+            stackReady();
+        }
+    };
+    /* Backpressure, producers blocked by OverflowPolicy.BLOCK wait on spaceLock */
+    private final Object spaceLock = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicBoolean full = new AtomicBoolean();
+    private long nextSequence;
+    /* Only touched by the drain loop, 0 while the stack accepts writes */
+    private long stackBusySince;
+    private int stackPolls;
+    private volatile FioTBluetoothLE le;
+    private volatile boolean writeCoalescing;
+    private volatile int maxWritePayload = DEFAULT_WRITE_PAYLOAD;
+    private volatile long readFreshnessMillisec;
+    private volatile int maxRequests;
+    private volatile long maxBytes;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile RequestQueueListener queueListener;
+
+    private static class CachedValue {
+        final byte[] value;
+        final long time;
+
+        CachedValue(byte[] value, long time) {
+            this.value = value;
+            this.time = time;
+        }
     }
 
-    public synchronized void reset() {
-        lock.lock();
-        requestQueue.clear();
-        lock.unlock();
+    /* A request is recycled once completed, the generation tells a new use of it apart */
+    private static class PendingRead {
+        final Request request;
+        final int generation;
+
+        PendingRead(Request request) {
+            this.request = request;
+            this.generation = request.getGeneration();
+        }
+    }
+
+    /* Matches requests by characteristic, by tag, or both when both are set */
+    private static class Purge {
+        final BluetoothGattCharacteristic characteristic;
+        final Object tag;
+
+        Purge(BluetoothGattCharacteristic characteristic, Object tag) {
+            this.characteristic = characteristic;
+            this.tag = tag;
+        }
+
+        boolean matches(Request request) {
+            return (characteristic == null || request.getData().getCharacteristic() == characteristic) &&
+                    (tag == null || tag.equals(request.getTag()));
+        }
     }
 
-    public synchronized void impl(FioTBluetoothLE le) {
-        lock.lock();
+    public RequestHandler() {
+        int numLanes = RequestPriority.values().length;
+        lanes = new RequestLane[numLanes];
+        bypassed = new int[numLanes];
+
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = new RequestLane();
+        }
+
+        for (RequestCmd cmd : RequestCmd.values()) {
+            retryPolicies[cmd.ordinal()] = RetryPolicy.DEFAULT;
+        }
 
+        /* A transaction can't be resumed half way */
+        retryPolicies[RequestCmd.BEGIN_RELIABLE_WRITE.ordinal()] = RetryPolicy.NONE;
+        retryPolicies[RequestCmd.EXECUTE_RELIABLE_WRITE.ordinal()] = RetryPolicy.NONE;
+        retryPolicies[RequestCmd.ABORT_RELIABLE_WRITE.ordinal()] = RetryPolicy.NONE;
+    }
+
+    /**
+     * @return false if a full queue refused or dropped the request,
+     * its future is then already completed
+     */
+    public boolean enqueue(Request request) {
+        return enqueue(request, true);
+    }
+
+    /**
+     * Same as enqueue() but never waits for room, for GATT and timer callbacks. A request
+     * that doesn't fit is left untouched with its future pending.
+     *
+     * @return false if the request was refused, or left out if its future isn't done
+     */
+    boolean enqueueInternal(Request request) {
+        return enqueue(request, false);
+    }
+
+    private boolean enqueue(Request request, boolean wait) {
+        if (request.getCmd() == RequestCmd.READ && readFromCache(request)) {
+            request.recycle();
+            return true;
+        }
+
+        switch (admit(request, wait)) {
+            case REFUSED:
+                request.recycle();
+                return false;
+
+            case DEFERRED:
+                return false;
+        }
+
+        if (isWrite(request.getCmd())) {
+            readCache.remove(request.getData().getCharacteristic());
+        } else if (request.getCmd() == RequestCmd.RELIABLE_WRITE) {
+            invalidate(request.getData().getReliableWrite());
+        }
+
+        while (!inbox.offer(request)) {
+            /* Dispatcher is behind, help it empty the inbox */
+            drain();
+
+            if (inbox.offer(request)) {
+                break;
+            }
+
+            switch (awaitInbox(request, wait)) {
+                case REFUSED:
+                    request.recycle();
+                    return false;
+
+                case DEFERRED:
+                    return false;
+            }
+        }
+
+        drain();
+        return true;
+    }
+
+    /**
+     * The inbox stayed full, another thread owns the drain loop: handled like a full queue.
+     * DROP_OLDEST waits too, requests in the inbox can't be dropped.
+     *
+     * @return ADMITTED once the inbox has room, otherwise the reservation is released
+     */
+    private int awaitInbox(Request request, boolean wait) {
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                release(request);
+                refuse(request, RequestFuture.STATUS_DROPPED);
+                return REFUSED;
+
+            case FAIL_FAST:
+                release(request);
+                refuse(request, RequestFuture.STATUS_REJECTED);
+                return REFUSED;
+
+            default:
+                if (!wait) {
+                    release(request);
+                    return DEFERRED;
+                }
+        }
+
+        boolean interrupted = false;
+
+        synchronized (spaceLock) {
+            waiters.incrementAndGet();
+
+            try {
+                /* Checked after registering, the drain loop signals once it emptied the inbox */
+                while (inbox.isFull()) {
+                    spaceLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        if (interrupted) {
+            release(request);
+            refuse(request, RequestFuture.STATUS_REJECTED);
+            return REFUSED;
+        }
+
+        return ADMITTED;
+    }
+
+    /**
+     * Drop every request, pending futures complete with GATT_FAILURE
+     */
+    public void reset() {
+        resetRequested.set(true);
+        drain();
+    }
+
+    /**
+     * Cancel every queued request of a characteristic, reads included.
+     * Futures complete with STATUS_CANCELLED, the operation in flight still runs.
+     */
+    public void cancel(BluetoothGattCharacteristic characteristic) {
+        if (characteristic != null) {
+            purge(new Purge(characteristic, null));
+        }
+    }
+
+    /**
+     * Cancel every queued request tagged with tag, see Request.setTag()
+     */
+    public void cancel(Object tag) {
+        if (tag != null) {
+            purge(new Purge(null, tag));
+        }
+    }
+
+    private void purge(Purge purge) {
+        /* Can't be taken back from the radio, only its result is dropped */
+        Request current = inFlight.get();
+        if (current != null) {
+            RequestFuture future = current.getFuture();
+            boolean matches = purge.matches(current);
+
+            /* Pooled requests are recycled once completed, make sure it was still this one */
+            if (matches && future != null && inFlight.get() == current) {
+                future.cancel();
+            }
+        }
+
+        purges.add(purge);
+        drain();
+    }
+
+    /**
+     * Start the next request if nothing is in flight
+     */
+    public void impl(FioTBluetoothLE le) {
         if (le == null) {
             Log.e(TAG, "impl: le is null");
-            lock.unlock();
+        }
+
+        this.le = le;
+        drain();
+    }
+
+    /**
+     * Start the next request if nothing is in flight
+     */
+    public void implRightNow(FioTBluetoothLE le) {
+        impl(le);
+    }
+
+    /**
+     * Merge consecutive pending writes to the same characteristic into as few packets as
+     * possible. Off by default, peripheral must not rely on one write per call.
+     */
+    public void setWriteCoalescing(boolean enable) {
+        this.writeCoalescing = enable;
+    }
+
+    /**
+     * Size limit of a coalesced write
+     */
+    public void setMaxWritePayload(int maxWritePayload) {
+        this.maxWritePayload = maxWritePayload;
+    }
+
+    /**
+     * A successful read younger than this answers new reads of the same characteristic
+     * without a radio round trip. 0, the default, turns the cache off.
+     * See Request.setBypassCache() for reads that must reach the peripheral.
+     */
+    public void setReadFreshness(long millisec) {
+        this.readFreshnessMillisec = millisec;
+
+        if (millisec <= 0) {
+            readCache.clear();
+        }
+    }
+
+    /**
+     * Bound the queue. A limit of 0 means unlimited, which is the default.
+     *
+     * @param maxRequests requests queued or in flight
+     * @param maxBytes    payload bytes of queued writes
+     * @param policy      what to do with a request that doesn't fit
+     */
+    public void setCapacity(int maxRequests, long maxBytes, OverflowPolicy policy) {
+        this.maxRequests = Math.max(0, maxRequests);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.overflowPolicy = policy;
+        signalSpace();
+    }
+
+    /**
+     * Retry budget and backoff of one operation type, RetryPolicy.NONE to never retry
+     */
+    public void setRetryPolicy(RequestCmd cmd, RetryPolicy policy) {
+        retryPolicies[cmd.ordinal()] = policy != null ? policy : RetryPolicy.NONE;
+    }
+
+    public void setQueueListener(RequestQueueListener queueListener) {
+        this.queueListener = queueListener;
+    }
+
+    /**
+     * @return payload bytes of queued or in flight writes, O(1)
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return number of requests queued or in flight, O(1)
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public void onCharacteristicRead(FioTBluetoothLE le,
+                                     BluetoothGattCharacteristic characteristic,
+                                     byte[] value,
+                                     int status) {
+        Request request = takeCompleted(RequestCmd.READ, characteristic, status);
+        if (request == null) return;
+
+        if (request.isBypassCache()) {
+            readCache.remove(characteristic);
+        } else if (status == BluetoothGatt.GATT_SUCCESS && readFreshnessMillisec > 0) {
+            readCache.put(characteristic, new CachedValue(value, SystemClock.elapsedRealtime()));
+        }
+
+        request.getFuture().setValue(value);
+        List<Request> merged = request.finish();
+        if (merged != null) {
+            for (Request other : merged) {
+                other.getFuture().setValue(value);
+            }
+        }
+
+        finish(le, request, status);
+    }
+
+    public void onCharacteristicWrite(FioTBluetoothLE le,
+                                      BluetoothGattCharacteristic characteristic,
+                                      int status) {
+        /* A write started outside the queue left the stack, a buffer is free again */
+        stackReady();
+
+        Request current = inFlight.get();
+        if (current != null && current.getCmd() == RequestCmd.RELIABLE_WRITE) {
+            onPreparedWrite(le, current, status);
             return;
         }
 
-        if (requestQueue.size() == 0) {
-            Log.d(TAG, "impl: empty request queue");
-            lock.unlock();
+        RequestCmd cmd = inFlightCmd(RequestCmd.WRITE, RequestCmd.WRITE_NO_RESPONSE);
+        Request request = takeCompleted(cmd, characteristic, status);
+        if (request == null) return;
+
+        readCache.remove(characteristic);
+        finish(le, request, status);
+    }
+
+    public void onDescriptorRead(FioTBluetoothLE le,
+                                 BluetoothGattDescriptor descriptor,
+                                 byte[] value,
+                                 int status) {
+        Request request = takeCompleted(RequestCmd.READ_DESCRIPTOR, descriptor, status);
+        if (request == null) return;
+
+        request.getFuture().setValue(value);
+        finish(le, request, status);
+    }
+
+    public void onDescriptorWrite(FioTBluetoothLE le,
+                                  BluetoothGattDescriptor descriptor,
+                                  int status) {
+        RequestCmd cmd = inFlightCmd(RequestCmd.WRITE_DESCRIPTOR, RequestCmd.SET_NOTIFICATION);
+        Request request = takeCompleted(cmd, descriptor, status);
+        if (request == null) return;
+
+        finish(le, request, status);
+    }
+
+    public void onReliableWriteCompleted(FioTBluetoothLE le, int status) {
+        RequestCmd cmd = inFlightCmd(RequestCmd.EXECUTE_RELIABLE_WRITE, RequestCmd.RELIABLE_WRITE);
+        Request request = takeCompleted(cmd, null, status);
+        if (request == null) return;
+
+        if (cmd == RequestCmd.RELIABLE_WRITE) {
+            invalidate(request.getData().getReliableWrite());
+        }
+
+        finish(le, request, status);
+    }
+
+    /**
+     * Next step of a transaction: prepare the next value or execute
+     */
+    private void onPreparedWrite(FioTBluetoothLE le, Request request, int status) {
+        ReliableWrite reliableWrite = request.getData().getReliableWrite();
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            boolean started = reliableWrite.advance() ?
+                    le.writeToCharacteristic(reliableWrite.getCharacteristic(), reliableWrite.getValue()) :
+                    le.executeReliableWrite();
+
+            if (started) {
+                return;
+            }
+
+            status = BluetoothGatt.GATT_FAILURE;
+        }
+
+        /* Nothing prepared so far is committed */
+        le.abortReliableWrite();
+
+        Request completed = takeCompleted(RequestCmd.RELIABLE_WRITE, null, status);
+        if (completed == null) return;
+
+        invalidate(reliableWrite);
+        finish(le, completed, status);
+    }
+
+    private void invalidate(ReliableWrite reliableWrite) {
+        for (BluetoothGattCharacteristic characteristic : reliableWrite.getCharacteristics()) {
+            readCache.remove(characteristic);
+        }
+    }
+
+    public void onReadRemoteRssi(FioTBluetoothLE le, int rssi, int status) {
+        Request request = takeCompleted(RequestCmd.READ_RSSI, null, status);
+        if (request == null) return;
+
+        request.getFuture().setRssi(rssi);
+        finish(le, request, status);
+    }
+
+    public void onMtuChanged(FioTBluetoothLE le, int mtu, int status) {
+        Request request = takeCompleted(RequestCmd.REQUEST_MTU, null, status);
+        if (request == null) return;
+
+        request.getFuture().setMtu(mtu);
+        finish(le, request, status);
+    }
+
+    public void onPhyUpdate(FioTBluetoothLE le, int txPhy, int rxPhy, int status) {
+        Request request = takeCompleted(RequestCmd.SET_PREFERRED_PHY, null, status);
+        if (request == null) return;
+
+        request.getFuture().setPhy(txPhy, rxPhy);
+        finish(le, request, status);
+    }
+
+    public void onPhyRead(FioTBluetoothLE le, int txPhy, int rxPhy, int status) {
+        Request request = takeCompleted(RequestCmd.READ_PHY, null, status);
+        if (request == null) return;
+
+        request.getFuture().setPhy(txPhy, rxPhy);
+        finish(le, request, status);
+    }
+
+    private void finish(FioTBluetoothLE le, Request request, int status) {
+        complete(request, status);
+        impl(le);
+    }
+
+    private void complete(Request request, int status) {
+        forgetRead(request);
+        metrics.onCompleted(status);
+        request.getFuture().completePart(status);
+
+        List<Request> merged = request.finish();
+        if (merged != null) {
+            for (Request other : merged) {
+                metrics.onCompleted(status);
+                other.getFuture().completePart(status);
+                other.recycle();
+            }
+        }
+
+        request.recycle();
+    }
+
+    /**
+     * Both commands share a GATT callback
+     *
+     * @return other if it is the command in flight, cmd otherwise
+     */
+    private RequestCmd inFlightCmd(RequestCmd cmd, RequestCmd other) {
+        Request request = inFlight.get();
+        return request != null && request.getCmd() == other ? other : cmd;
+    }
+
+    /**
+     * Same as takeInFlight(), but null if the request failed transiently and was queued
+     * again for a retry
+     */
+    private Request takeCompleted(RequestCmd cmd, Object target, int status) {
+        Request request = takeInFlight(cmd, target);
+
+        if (request != null && status != BluetoothGatt.GATT_SUCCESS &&
+                RetryPolicy.isTransient(status) && scheduleRetry(request)) {
+            /* Holds its place in the queue again until the retry completes */
+            depth.incrementAndGet();
+            queuedBytes.addAndGet(request.getQueuedBytes());
+            retries.add(request);
+            drain();
+            return null;
+        }
+
+        return request;
+    }
+
+    /**
+     * Count a retry and set when it may start
+     *
+     * @return false if the budget is spent or nobody waits for the result any more
+     */
+    private boolean scheduleRetry(Request request) {
+        RequestFuture future = request.getFuture();
+        RetryPolicy policy = retryPolicies[request.getCmd().ordinal()];
+        int retry = request.getRetries() + 1;
+
+        if (future.isDone() || retry > policy.getMaxRetries()) {
+            return false;
+        }
+
+        long delay = policy.getDelayMillisec(retry);
+        metrics.onRetried();
+        future.onRetry();
+        Log.w(TAG, "retry " + request.getCmd() + " #" + retry + " in " + delay + " ms");
+
+        request.setRetries(retry);
+        request.setNotBefore(SystemClock.elapsedRealtime() + delay);
+
+        if (delay > 0) {
+            TimeoutScheduler.getInstance().schedule(drainTask, delay);
+        }
+
+        return true;
+    }
+
+    /**
+     * Take the request in flight if the callback belongs to it.
+     * Callbacks of operations started outside the queue (e.g. writeLargeSafe) are ignored.
+     */
+    private Request takeInFlight(RequestCmd cmd, Object target) {
+        Request request = inFlight.get();
+
+        if (request == null || request.getCmd() != cmd) {
+            return null;
+        }
+
+        RequestData data = request.getData();
+        if (target != null && data.getCharacteristic() != target && data.getDescriptor() != target) {
+            return null;
+        }
+
+        if (!inFlight.compareAndSet(request, null)) {
+            return null;
+        }
+
+        release(request);
+        return request;
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
             return;
         }
 
-        Request request = requestQueue.element();
-        RequestData requestData = request.getData();
-        switch (request.getCmd()) {
-            case READ:
-                le.requestCharacteristicValue(requestData.getCharacteristic());
-                break;
+        List<Request> toComplete = null;
+        int missed = 1;
 
-            case WRITE:
-                le.writeToCharacteristic(requestData.getCharacteristic(),
-                        requestData.getData());
-                break;
+        for (;;) {
+            if (resetRequested.getAndSet(false)) {
+                clear();
+            }
 
-            default:
+            Request request;
+            while ((request = inbox.poll()) != null) {
+                addPending(request);
+            }
+
+            while ((request = retries.poll()) != null) {
+                lanes[request.getPriority().ordinal()].addFirst(request);
+            }
+
+            Purge purge;
+            while ((purge = purges.poll()) != null) {
+                removePending(purge);
+            }
+
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                dropOverflow();
+            }
+
+            dispatch();
+
+            if (!finished.isEmpty()) {
+                if (toComplete == null) toComplete = new ArrayList<>();
+                toComplete.addAll(finished);
+                finished.clear();
+            }
+
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
                 break;
+            }
+        }
+
+        /* Producers waiting for room in the inbox */
+        signalSpace();
+
+        /* Completed after leaving the loop so callbacks can enqueue again */
+        if (toComplete != null) {
+            for (Request request : toComplete) {
+                complete(request, request.getResult());
+            }
+        }
+    }
+
+    private void dispatch() {
+        FioTBluetoothLE le = this.le;
+
+        if (le == null || stackBusy.get()) {
+            return;
+        }
+
+        while (inFlight.get() == null) {
+            Request request = nextPending();
+
+            if (request == null) {
+                return;
+            }
+
+            /* Another part of its future failed or was dropped, e.g. an earlier chunk */
+            if (request.getFuture().isDone()) {
+                release(request);
+                finishLater(request, request.getFuture().getStatus());
+                continue;
+            }
+
+            if (request.getDeadline() > 0 && SystemClock.elapsedRealtime() > request.getDeadline()) {
+                Log.d(TAG, "impl: " + request.getCmd() + " expired");
+                release(request);
+                finishLater(request, RequestFuture.STATUS_EXPIRED);
+                continue;
+            }
+
+            /* Publish before issuing, the callback may arrive on another thread right away */
+            inFlight.set(request);
+            metrics.onDispatched();
+
+            if (!issue(le, request)) {
+                if (inFlight.compareAndSet(request, null)) {
+                    if (request.getCmd() == RequestCmd.WRITE_NO_RESPONSE && awaitStack()) {
+                        /* Not an attempt, goes again first once the stack takes writes */
+                        lanes[request.getPriority().ordinal()].addFirst(request);
+                        return;
+                    }
+
+                    Log.e(TAG, "impl: can't start " + request.getCmd());
+
+                    if (scheduleRetry(request)) {
+                        /* Stack busy, its lane waits for the backoff */
+                        lanes[request.getPriority().ordinal()].addFirst(request);
+                    } else {
+                        release(request);
+                        finishLater(request, BluetoothGatt.GATT_FAILURE);
+                    }
+                }
+            } else {
+                stackBusySince = 0;
+
+                if (!hasCallback(request.getCmd()) && inFlight.compareAndSet(request, null)) {
+                    release(request);
+                    finishLater(request, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pause dispatch until the stack frees a buffer, nothing sleeps meanwhile
+     *
+     * @return false if the stack refused writes for too long
+     */
+    private boolean awaitStack() {
+        long now = SystemClock.elapsedRealtime();
+
+        if (stackBusySince == 0) {
+            stackBusySince = now;
+            stackPolls = 0;
+        } else if (now - stackBusySince > STACK_BUSY_TIMEOUT_MILLISEC) {
+            stackBusySince = 0;
+            return false;
+        }
+
+        long delay = Math.min(MAX_STACK_POLL_MILLISEC, 1L << Math.min(stackPolls++, 30));
+        stackBusy.set(true);
+        TimeoutScheduler.getInstance().schedule(stackPoll, delay);
+        return true;
+    }
+
+    private void stackReady() {
+        if (stackBusy.compareAndSet(true, false)) {
+            drain();
+        }
+    }
+
+    private void addPending(Request request) {
+        RequestLane lane = lanes[request.getPriority().ordinal()];
+        RequestCmd cmd = request.getCmd();
+        BluetoothGattCharacteristic characteristic = request.getData().getCharacteristic();
+
+        if (isWrite(cmd)) {
+            Request last = lane.peekLast();
+
+            if (writeCoalescing && canMerge(last, request) && coalesce(last, request)) {
+                /* Its bytes are released together with the request it joined */
+                last.setQueuedBytes(last.getQueuedBytes() + request.getQueuedBytes());
+                depth.decrementAndGet();
+                return;
+            }
+        } else if (cmd == RequestCmd.READ) {
+            PendingRead pending = lastRequests.get(characteristic);
+            Request last = pending != null ? pending.request : null;
+
+            /* Join a read that is still queued or in flight, unless it waits in a slower lane */
+            if (last != null && last.getCmd() == RequestCmd.READ && !request.isBypassCache() &&
+                    last.getPriority().ordinal() <= request.getPriority().ordinal() &&
+                    canMerge(last, request) && last.merge(request, pending.generation)) {
+                release(request);
+                return;
+            }
+        }
+
+        request.setSequence(nextSequence++);
+
+        if (cmd == RequestCmd.READ) {
+            lastRequests.put(characteristic, new PendingRead(request));
+        } else if (isWrite(cmd)) {
+            lastRequests.remove(characteristic);
+        }
+
+        lane.add(request);
+    }
+
+    /* A completed or dropped read can't be joined any more */
+    private void forgetRead(Request request) {
+        if (request.getCmd() != RequestCmd.READ) {
+            return;
+        }
+
+        BluetoothGattCharacteristic characteristic = request.getData().getCharacteristic();
+        PendingRead pending = characteristic != null ? lastRequests.get(characteristic) : null;
+
+        if (pending != null && pending.request == request) {
+            lastRequests.remove(characteristic, pending);
+        }
+    }
+
+    /* Requests merged together are cancelled and expire together */
+    private static boolean canMerge(Request last, Request request) {
+        return last != null && last.getDeadline() == request.getDeadline() &&
+                (last.getTag() == null ? request.getTag() == null : last.getTag().equals(request.getTag()));
+    }
+
+    private static boolean isWrite(RequestCmd cmd) {
+        return cmd == RequestCmd.WRITE || cmd == RequestCmd.WRITE_NO_RESPONSE;
+    }
+
+    private static boolean hasCallback(RequestCmd cmd) {
+        return cmd != RequestCmd.REQUEST_CONNECTION_PRIORITY &&
+                cmd != RequestCmd.BEGIN_RELIABLE_WRITE &&
+                cmd != RequestCmd.ABORT_RELIABLE_WRITE;
+    }
+
+    private void removePending(Purge purge) {
+        for (RequestLane lane : lanes) {
+            Iterator<Request> iterator = lane.iterator();
+
+            while (iterator.hasNext()) {
+                Request request = iterator.next();
+
+                if (!purge.matches(request)) continue;
+
+                iterator.remove();
+
+                forgetRead(request);
+
+                release(request);
+                finishLater(request, RequestFuture.STATUS_CANCELLED);
+            }
+        }
+    }
+
+    private boolean coalesce(Request last, Request request) {
+        if (last == null || last.getCmd() != request.getCmd()) {
+            return false;
+        }
+
+        RequestData lastData = last.getData();
+        RequestData data = request.getData();
+
+        int lastLength = lastData.getLength();
+
+        /* Direct buffer slices stay uncopied until they are sent */
+        if (lastData.getCharacteristic() != data.getCharacteristic() ||
+                lastData.getData() == null || data.getData() == null ||
+                lastLength + data.getLength() > maxWritePayload) {
+            return false;
+        }
+
+        if (!last.merge(request, last.getGeneration())) {
+            return false;
+        }
+
+        byte[] joined = new byte[lastLength + data.getLength()];
+        System.arraycopy(lastData.getData(), lastData.getOffset(), joined, 0, lastLength);
+        System.arraycopy(data.getData(), data.getOffset(), joined, lastLength, data.getLength());
+        lastData.setData(joined);
+        return true;
+    }
+
+    private boolean readFromCache(Request request) {
+        if (readFreshnessMillisec <= 0 || request.isBypassCache()) {
+            return false;
+        }
+
+        CachedValue cached = readCache.get(request.getData().getCharacteristic());
+
+        if (cached == null || SystemClock.elapsedRealtime() - cached.time > readFreshnessMillisec) {
+            return false;
+        }
+
+        request.getFuture().setValue(cached.value);
+        request.getFuture().completePart(BluetoothGatt.GATT_SUCCESS);
+        return true;
+    }
+
+    /**
+     * Pick the next request: highest priority first, unless a lower lane has been
+     * passed over too often.
+     */
+    private Request nextPending() {
+        long now = SystemClock.elapsedRealtime();
+        int selected = -1;
+
+        for (int i = 0; i < lanes.length; i++) {
+            if (!isReady(lanes[i], now)) continue;
+
+            if (selected < 0) {
+                selected = i;
+            } else if (bypassed[i] >= MAX_BYPASS && bypassed[i] >= bypassed[selected]) {
+                selected = i;
+            }
+        }
+
+        if (selected < 0) {
+            return null;
+        }
+
+        for (int i = 0; i < lanes.length; i++) {
+            if (i == selected || !isReady(lanes[i], now)) {
+                bypassed[i] = 0;
+            } else if (i > selected) {
+                bypassed[i]++;
+            }
+        }
+
+        return lanes[selected].poll();
+    }
+
+    /**
+     * @return false if the lane is empty or its head waits for a retry backoff
+     */
+    private static boolean isReady(RequestLane lane, long now) {
+        Request head = lane.peek();
+        return head != null && head.getNotBefore() <= now;
+    }
+
+    private void clear() {
+        Request request;
+
+        Request current = inFlight.getAndSet(null);
+        if (current != null) {
+            release(current);
+            finishLater(current, BluetoothGatt.GATT_FAILURE);
+        }
+
+        while ((request = inbox.poll()) != null) {
+            addPending(request);
+        }
+
+        while ((request = retries.poll()) != null) {
+            release(request);
+            finishLater(request, BluetoothGatt.GATT_FAILURE);
+        }
+
+        for (RequestLane lane : lanes) {
+            while ((request = lane.poll()) != null) {
+                release(request);
+                finishLater(request, BluetoothGatt.GATT_FAILURE);
+            }
+        }
+
+        lastRequests.clear();
+        readCache.clear();
+        payloadSource = null;
+        payloadView = null;
+        stackBusy.set(false);
+        stackBusySince = 0;
+    }
+
+    private void finishLater(Request request, int result) {
+        request.setResult(result);
+        finished.add(request);
+    }
+
+    /**
+     * Reserve room for a request according to the capacity and overflow policy
+     *
+     * @param wait false to leave the request out instead of waiting under BLOCK
+     * @return REFUSED with the future completed, or DEFERRED with nothing reserved
+     */
+    private int admit(Request request, boolean wait) {
+        int bytes = request.getPayloadSize();
+        long maxBytes = this.maxBytes;
+        request.setQueuedBytes(bytes);
+
+        /* Could never fit, even in an empty queue */
+        if (maxBytes > 0 && bytes > maxBytes) {
+            refuse(request, RequestFuture.STATUS_REJECTED);
+            return REFUSED;
         }
 
-        lock.unlock();
+        while (!tryReserve(bytes)) {
+            notifyFull();
+
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    /* Room is made by the drain loop */
+                    depth.incrementAndGet();
+                    queuedBytes.addAndGet(bytes);
+                    return ADMITTED;
+
+                case DROP_NEWEST:
+                    refuse(request, RequestFuture.STATUS_DROPPED);
+                    return REFUSED;
+
+                case FAIL_FAST:
+                    refuse(request, RequestFuture.STATUS_REJECTED);
+                    return REFUSED;
+
+                case BLOCK:
+                default:
+                    if (!wait) {
+                        return DEFERRED;
+                    }
+
+                    if (!awaitSpace()) {
+                        refuse(request, RequestFuture.STATUS_REJECTED);
+                        return REFUSED;
+                    }
+            }
+        }
+
+        if (isFull()) {
+            notifyFull();
+        }
+
+        return ADMITTED;
+    }
+
+    private void refuse(Request request, int status) {
+        metrics.onCompleted(status);
+        request.getFuture().completePart(status);
+    }
+
+    private boolean tryReserve(int bytes) {
+        int d = depth.incrementAndGet();
+        long b = queuedBytes.addAndGet(bytes);
+
+        if ((maxRequests > 0 && d > maxRequests) || (maxBytes > 0 && b > maxBytes)) {
+            depth.decrementAndGet();
+            queuedBytes.addAndGet(-bytes);
+            signalSpace();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private boolean awaitSpace() {
+        synchronized (spaceLock) {
+            waiters.incrementAndGet();
+
+            try {
+                /* Checked after registering, a release in between signals the lock */
+                while (isFull()) {
+                    spaceLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isFull() {
+        int maxRequests = this.maxRequests;
+        long maxBytes = this.maxBytes;
+
+        return (maxRequests > 0 && depth.get() >= maxRequests) ||
+                (maxBytes > 0 && queuedBytes.get() >= maxBytes);
+    }
+
+    private void notifyFull() {
+        RequestQueueListener listener = queueListener;
+
+        if (full.compareAndSet(false, true) && listener != null) {
+            listener.onQueueFull();
+        }
+    }
+
+    /**
+     * Give back the room held by a request that left the queue
+     */
+    private void release(Request request) {
+        depth.decrementAndGet();
+        queuedBytes.addAndGet(-request.getQueuedBytes());
+        signalSpace();
+
+        if (!full.get()) {
+            return;
+        }
+
+        /* Resume producers at half capacity so they don't flap around the limit */
+        int maxRequests = this.maxRequests;
+        long maxBytes = this.maxBytes;
+
+        if ((maxRequests == 0 || depth.get() <= maxRequests / 2) &&
+                (maxBytes == 0 || queuedBytes.get() <= maxBytes / 2) &&
+                full.compareAndSet(true, false)) {
+            RequestQueueListener listener = queueListener;
+            if (listener != null) {
+                listener.onQueueAvailable();
+            }
+        }
+    }
+
+    private void signalSpace() {
+        if (waiters.get() > 0) {
+            synchronized (spaceLock) {
+                spaceLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest pending requests until the queue is back within capacity
+     */
+    private void dropOverflow() {
+        int maxRequests = this.maxRequests;
+        long maxBytes = this.maxBytes;
+
+        while ((maxRequests > 0 && depth.get() > maxRequests) ||
+                (maxBytes > 0 && queuedBytes.get() > maxBytes)) {
+            RequestLane oldestLane = null;
+            Request oldest = null;
+
+            for (RequestLane lane : lanes) {
+                Request head = lane.oldest();
+
+                if (head != null && (oldest == null || head.getSequence() < oldest.getSequence())) {
+                    oldestLane = lane;
+                    oldest = head;
+                }
+            }
+
+            /* Only the request in flight is left */
+            if (oldestLane == null) {
+                return;
+            }
+
+            oldestLane.remove(oldest);
+            forgetRead(oldest);
+
+            release(oldest);
+            finishLater(oldest, RequestFuture.STATUS_DROPPED);
+        }
     }
 
-    public synchronized void implRightNow(FioTBluetoothLE le) {
-        if (requestQueue.size() == 1) {
-            impl(le);
+    /**
+     * Copy a slice into an array of its size. setValue() keeps the array, so it's reused
+     * only once its owner holds another value.
+     *
+     * @param owner characteristic or descriptor the value is set on
+     */
+    private byte[] payloadOf(RequestData requestData, Object owner) {
+        if (requestData.isWholeArray()) {
+            return requestData.getData();
+        }
+
+        int length = requestData.getLength();
+        byte[] buffer = null;
+
+        if (length <= MAX_ATTRIBUTE_SIZE) {
+            byte[][] buffers = payloadBuffers[length];
+            Object[] owners = payloadOwners[length];
+
+            if (buffers == null) {
+                buffers = payloadBuffers[length] = new byte[2][];
+                owners = payloadOwners[length] = new Object[2];
+            }
+
+            for (int i = 0; i < buffers.length && buffer == null; i++) {
+                if (buffers[i] == null) {
+                    buffers[i] = new byte[length];
+                } else if (valueOf(owners[i]) == buffers[i]) {
+                    continue;
+                }
+
+                buffer = buffers[i];
+                owners[i] = owner;
+            }
+        }
+
+        if (buffer == null) {
+            buffer = new byte[length];
+        }
+
+        if (requestData.getBuffer() != null) {
+            ByteBuffer view = viewOf(requestData.getBuffer());
+            view.position(requestData.getOffset());
+            view.get(buffer, 0, length);
         } else {
-            Log.d(TAG, "Not implement due to request queue size is: " + requestQueue.size());
+            System.arraycopy(requestData.getData(), requestData.getOffset(), buffer, 0, length);
+        }
+
+        return buffer;
+    }
+
+    private static byte[] valueOf(Object owner) {
+        if (owner instanceof BluetoothGattCharacteristic) {
+            return ((BluetoothGattCharacteristic) owner).getValue();
+        }
+
+        return owner instanceof BluetoothGattDescriptor ? ((BluetoothGattDescriptor) owner).getValue() : null;
+    }
+
+    /* One duplicate per transfer rather than per chunk */
+    private ByteBuffer viewOf(ByteBuffer source) {
+        if (payloadSource != source) {
+            payloadSource = source;
+            payloadView = source.duplicate();
+            payloadView.clear();
+        }
+
+        return payloadView;
+    }
+
+    private static boolean beginReliableWrite(FioTBluetoothLE le, ReliableWrite reliableWrite) {
+        if (reliableWrite.size() == 0 || !le.beginReliableWrite()) {
+            return false;
+        }
+
+        reliableWrite.rewind();
+
+        if (!le.writeToCharacteristic(reliableWrite.getCharacteristic(), reliableWrite.getValue())) {
+            le.abortReliableWrite();
+            return false;
         }
+
+        return true;
     }
 
-    public synchronized void dequeue() {
-        lock.lock();
-        requestQueue.remove();
-        lock.unlock();
+    private boolean issue(FioTBluetoothLE le, Request request) {
+        RequestData requestData = request.getData();
+
+        switch (request.getCmd()) {
+            case READ:
+                return le.requestCharacteristicValue(requestData.getCharacteristic());
+
+            case WRITE:
+                return le.writeToCharacteristic(requestData.getCharacteristic(),
+                        payloadOf(requestData, requestData.getCharacteristic()));
+
+            case WRITE_NO_RESPONSE:
+                return le.writeToCharacteristic(requestData.getCharacteristic(),
+                        payloadOf(requestData, requestData.getCharacteristic()),
+                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+
+            case READ_DESCRIPTOR:
+                return le.readDescriptor(requestData.getDescriptor());
+
+            case WRITE_DESCRIPTOR:
+                return le.writeDescriptor(requestData.getDescriptor(),
+                        payloadOf(requestData, requestData.getDescriptor()));
+
+            case SET_NOTIFICATION:
+                return le.setCharacteristicNotification(requestData.getCharacteristic(),
+                        requestData.getDescriptor(),
+                        payloadOf(requestData, requestData.getDescriptor()));
+
+            case READ_RSSI:
+                return le.readRSSI();
+
+            case REQUEST_MTU:
+                return le.requestMtu(requestData.getMtu());
+
+            case SET_PREFERRED_PHY:
+                return le.setPreferredPhy(requestData.getTxPhy(),
+                        requestData.getRxPhy(),
+                        requestData.getPhyOptions());
+
+            case READ_PHY:
+                return le.readPhy();
+
+            case REQUEST_CONNECTION_PRIORITY:
+                return le.requestConnectionPriority(requestData.getConnectionPriority());
+
+            case BEGIN_RELIABLE_WRITE:
+                return le.beginReliableWrite();
+
+            case EXECUTE_RELIABLE_WRITE:
+                return le.executeReliableWrite();
+
+            case ABORT_RELIABLE_WRITE:
+                return le.abortReliableWrite();
+
+            case RELIABLE_WRITE:
+                return beginReliableWrite(le, requestData.getReliableWrite());
+
+            default:
+                return false;
+        }
     }
 
 }
@@ -0,0 +1,127 @@
+package com.bluetooth.le.request;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Pending requests of one priority.
+ * <p>
+ * Requests with a deadline go first, earliest deadline first, then the others in arrival order.
+ * A request without deadline has an infinite one. Only the dispatcher thread touches a lane.
+ */
+final class RequestLane implements Iterable<Request> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final Comparator<Request> EARLIEST_DEADLINE = new Comparator<Request>() {
+        @Override
+        public int compare(Request a, Request b) {
+            if (a.getDeadline() != b.getDeadline()) {
+                return a.getDeadline() < b.getDeadline() ? -1 : 1;
+            }
+
+            /* Same deadline, e.g. chunks of one transfer: keep their order */
+            return a.getSequence() < b.getSequence() ? -1 : (a.getSequence() == b.getSequence() ? 0 : 1);
+        }
+    };
+
+    private final PriorityQueue<Request> timed = new PriorityQueue<>(INITIAL_CAPACITY, EARLIEST_DEADLINE);
+    private final ArrayDeque<Request> untimed = new ArrayDeque<>();
+
+    void add(Request request) {
+        if (request.getDeadline() > 0) {
+            timed.add(request);
+        } else {
+            untimed.addLast(request);
+        }
+    }
+
+    /**
+     * Put a request back in front of the requests that arrived after it, e.g. for a retry
+     */
+    void addFirst(Request request) {
+        if (request.getDeadline() > 0) {
+            timed.add(request);
+        } else {
+            untimed.addFirst(request);
+        }
+    }
+
+    /**
+     * @return last request without deadline, the one a new request may be merged into
+     */
+    Request peekLast() {
+        return untimed.peekLast();
+    }
+
+    Request peek() {
+        Request head = timed.peek();
+        return head != null ? head : untimed.peekFirst();
+    }
+
+    Request poll() {
+        Request head = timed.poll();
+        return head != null ? head : untimed.pollFirst();
+    }
+
+    /**
+     * @return the request queued first among the heads, null if empty
+     */
+    Request oldest() {
+        Request a = timed.peek();
+        Request b = untimed.peekFirst();
+
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.getSequence() < b.getSequence() ? a : b;
+    }
+
+    boolean remove(Request request) {
+        return request.getDeadline() > 0 ? timed.remove(request) : untimed.remove(request);
+    }
+
+    boolean isEmpty() {
+        return timed.isEmpty() && untimed.isEmpty();
+    }
+
+    /**
+     * Timed requests then untimed ones, remove() is supported
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        return new Iterator<Request>() {
+            private final Iterator<Request> first = timed.iterator();
+            private final Iterator<Request> second = untimed.iterator();
+            private Iterator<Request> last;
+
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public Request next() {
+                if (first.hasNext()) {
+                    last = first;
+                } else if (second.hasNext()) {
+                    last = second;
+                } else {
+                    throw new NoSuchElementException();
+                }
+
+                return last.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+
+                last.remove();
+            }
+        };
+    }
+}
@@ -0,0 +1,102 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a RequestHandler since it was created. Each chunk of a write counts as a request.
+ */
+public class RequestMetrics {
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /* Requests sent to the radio, retries included */
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    /* Failed with a GATT status or a failed verification */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    /* Past their deadline before reaching the radio */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    void onDispatched() {
+        dispatched.incrementAndGet();
+    }
+
+    void onRetried() {
+        retried.incrementAndGet();
+    }
+
+    void onCompleted(int status) {
+        switch (status) {
+            case BluetoothGatt.GATT_SUCCESS:
+                succeeded.incrementAndGet();
+                break;
+
+            case RequestFuture.STATUS_EXPIRED:
+                expired.incrementAndGet();
+                break;
+
+            case RequestFuture.STATUS_CANCELLED:
+                cancelled.incrementAndGet();
+                break;
+
+            case RequestFuture.STATUS_DROPPED:
+                dropped.incrementAndGet();
+                break;
+
+            case RequestFuture.STATUS_REJECTED:
+                rejected.incrementAndGet();
+                break;
+
+            default:
+                failed.incrementAndGet();
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "dispatched " + getDispatched() +
+                ", succeeded " + getSucceeded() +
+                ", failed " + getFailed() +
+                ", retried " + getRetried() +
+                ", expired " + getExpired() +
+                ", cancelled " + getCancelled() +
+                ", dropped " + getDropped() +
+                ", rejected " + getRejected();
+    }
+}
@@ -0,0 +1,14 @@
+package com.bluetooth.le.request;
+
+/**
+ * Scheduling class of a request, higher classes start first at the next request boundary.
+ * Requests of the same class keep their order.
+ */
+public enum RequestPriority {
+    /* Connection setup and link management: CCCD, MTU, PHY */
+    CONTROL,
+    /* Default, user commands and reads */
+    INTERACTIVE,
+    /* Large transfers, they give way to everything else */
+    BULK
+}
@@ -0,0 +1,17 @@
+package com.bluetooth.le.request;
+
+/**
+ * Backpressure signal of a bounded RequestHandler.
+ * Called on the thread that crossed the limit, keep it short.
+ */
+public interface RequestQueueListener {
+    /**
+     * Queue reached its capacity, producers should pause
+     */
+    void onQueueFull();
+
+    /**
+     * Queue drained below half of its capacity, producers can resume
+     */
+    void onQueueAvailable();
+}
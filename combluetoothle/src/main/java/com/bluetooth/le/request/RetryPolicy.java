@@ -0,0 +1,77 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.Random;
+
+/**
+ * How often and how fast a failed request is tried again. Only transient failures are
+ * retried, the delay doubles up to maxDelayMillisec with jitter.
+ */
+public class RetryPolicy {
+    /* Status codes of the Android stack that BluetoothGatt doesn't name */
+    public static final int GATT_NO_RESOURCES = 0x80;
+    public static final int GATT_INTERNAL_ERROR = 0x81;
+    public static final int GATT_BUSY = 0x84;
+    public static final int GATT_ERROR = 0x85;
+
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 20, 500);
+
+    private static final Random random = new Random();
+
+    private final int maxRetries;
+    private final long baseDelayMillisec;
+    private final long maxDelayMillisec;
+
+    /**
+     * @param maxRetries        retries after the first attempt
+     * @param baseDelayMillisec delay before the first retry
+     * @param maxDelayMillisec  cap of the doubling delay
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillisec, long maxDelayMillisec) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillisec = baseDelayMillisec;
+        this.maxDelayMillisec = Math.max(baseDelayMillisec, maxDelayMillisec);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public static boolean isTransient(int status) {
+        switch (status) {
+            case GATT_NO_RESOURCES:
+            case GATT_INTERNAL_ERROR:
+            case GATT_BUSY:
+            case GATT_ERROR:
+            case BluetoothGatt.GATT_CONNECTION_CONGESTED:
+            case BluetoothGatt.GATT_FAILURE:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @return delay before that retry, between half and all of the backoff
+     */
+    long getDelayMillisec(int retry) {
+        long delay = baseDelayMillisec;
+
+        for (int i = 1; i < retry && delay < maxDelayMillisec; i++) {
+            delay <<= 1;
+        }
+
+        delay = Math.min(delay, maxDelayMillisec);
+
+        if (delay <= 1) {
+            return delay;
+        }
+
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,115 @@
+package com.bluetooth.le.request;
+
+/**
+ * Snapshot of a bulk transfer reported to a {@link ProgressListener}
+ */
+public class TransferProgress {
+    private final long bytesAcknowledged;
+    private final long totalBytes;
+    private final long elapsedMillisec;
+    private final long throughput;
+    private final long averageThroughput;
+    private final int retransmissions;
+    private final long etaMillisec;
+    private final long[] latencyMicros;
+    private final boolean done;
+
+    TransferProgress(long bytesAcknowledged,
+                     long totalBytes,
+                     long elapsedMillisec,
+                     long throughput,
+                     long averageThroughput,
+                     int retransmissions,
+                     long etaMillisec,
+                     long[] latencyMicros,
+                     boolean done) {
+        this.bytesAcknowledged = bytesAcknowledged;
+        this.totalBytes = totalBytes;
+        this.elapsedMillisec = elapsedMillisec;
+        this.throughput = throughput;
+        this.averageThroughput = averageThroughput;
+        this.retransmissions = retransmissions;
+        this.etaMillisec = etaMillisec;
+        this.latencyMicros = latencyMicros;
+        this.done = done;
+    }
+
+    /**
+     * @return bytes handed to the controller, or verified for a verified write, resumed
+     * bytes included
+     */
+    public long getBytesAcknowledged() {
+        return bytesAcknowledged;
+    }
+
+    /**
+     * @return length of the transfer, -1 for a stream source of unknown length
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getElapsedMillisec() {
+        return elapsedMillisec;
+    }
+
+    /**
+     * @return bytes per second over the last quarter second or so
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return bytes per second since the transfer started
+     */
+    public long getAverageThroughput() {
+        return averageThroughput;
+    }
+
+    /**
+     * @return chunks sent again, retries of the queue and rewrites of a failed check
+     */
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * @return time left at the current throughput, -1 if unknown
+     */
+    public long getEtaMillisec() {
+        return etaMillisec;
+    }
+
+    /**
+     * Time from queueing a chunk to its acknowledgement, over the last chunks
+     *
+     * @return 0 before the first chunk
+     */
+    public long getLatencyP50Micros() {
+        return latencyMicros[0];
+    }
+
+    public long getLatencyP90Micros() {
+        return latencyMicros[1];
+    }
+
+    public long getLatencyP99Micros() {
+        return latencyMicros[2];
+    }
+
+    /**
+     * @return true for the last report, whether the transfer succeeded or not
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        return bytesAcknowledged + "/" + totalBytes + " B, " + throughput + " B/s (avg " +
+                averageThroughput + "), " + retransmissions + " retransmitted, eta " +
+                etaMillisec + " ms, latency p50/p90/p99 " + latencyMicros[0] + "/" +
+                latencyMicros[1] + "/" + latencyMicros[2] + " us" + (done ? ", done" : "");
+    }
+}
@@ -0,0 +1,216 @@
+package com.bluetooth.le.request;
+
+import android.util.Log;
+
+import com.bluetooth.le.FioTBluetoothLE;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Keeps the verified offset of a large transfer in a file, so a transfer cut by a
+ * disconnect resumes where it stopped. A checkpoint of other data is ignored.
+ */
+public class TransferSession {
+    private static final String TAG = "TransferSession";
+
+    private static final int CHECKPOINT_VERSION = 1;
+
+    /* Verified bytes between two saves, bounds both file writes and bytes sent again */
+    private static final int CHECKPOINT_INTERVAL = 4096;
+
+    private final File file;
+    private final int length;
+    private final byte[] hash;
+    private final int resumeOffset;
+    private volatile int verifiedOffset;
+    private int savedOffset;
+
+    /**
+     * Load the checkpoint of data, if any
+     *
+     * @param data from its position to its limit, the same bytes as the interrupted transfer
+     */
+    public TransferSession(File file, ByteBuffer data) {
+        this.file = file;
+        this.length = data.remaining();
+        this.hash = hashOf(data);
+        this.resumeOffset = load();
+        this.verifiedOffset = resumeOffset;
+        this.savedOffset = resumeOffset;
+    }
+
+    /**
+     * @return bytes verified by an earlier connection, the transfer starts after them
+     */
+    public int getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * @return bytes verified so far, earlier connections included
+     */
+    public int getVerifiedOffset() {
+        return verifiedOffset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Start write from the checkpoint and keep the checkpoint up to date
+     *
+     * @param listener absolute bytes verified, may be null
+     * @return future of write
+     */
+    public RequestFuture start(VerifiedWrite write, final FioTBluetoothLE.SendListener listener) {
+        if (resumeOffset > 0) {
+            Log.i(TAG, "resume " + file.getName() + " at byte " + resumeOffset);
+        }
+
+        write.resumeFrom(resumeOffset);
+        write.setListener(new FioTBluetoothLE.SendListener() {
+            @Override
+            public void sent(int num) {
+                verifiedOffset = num;
+
+                if (num - savedOffset >= CHECKPOINT_INTERVAL) {
+                    save(num);
+                }
+
+                if (listener != null) {
+                    listener.sent(num);
+                }
+            }
+        });
+
+        write.getFuture().addCallback(new RequestFuture.Callback() {
+            @Override
+            public void onComplete(RequestFuture future) {
+                if (future.isSuccess()) {
+                    discard();
+                } else {
+                    save(verifiedOffset);
+                }
+            }
+        });
+
+        return write.start();
+    }
+
+    /**
+     * Forget the checkpoint, the next transfer of this data starts from byte 0
+     */
+    public synchronized void discard() {
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "can't delete " + file);
+        }
+
+        savedOffset = 0;
+    }
+
+    private synchronized void save(int offset) {
+        if (offset <= 0 || (offset == savedOffset && file.exists())) {
+            return;
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            Log.e(TAG, "can't create " + parent);
+            return;
+        }
+
+        /* Written aside then renamed, a crash never leaves half a checkpoint */
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(length);
+            out.writeInt(hash.length);
+            out.write(hash);
+            out.writeInt(offset);
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "can't save " + file);
+                return;
+            }
+
+            savedOffset = offset;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return offset of a checkpoint of the same data, 0 otherwise
+     */
+    private int load() {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+
+            if (in.readInt() != CHECKPOINT_VERSION || in.readInt() != length ||
+                    in.readInt() != hash.length) {
+                return 0;
+            }
+
+            byte[] savedHash = new byte[hash.length];
+            in.readFully(savedHash);
+            int offset = in.readInt();
+
+            if (!Arrays.equals(savedHash, hash) || offset < 0 || offset > length) {
+                Log.i(TAG, "checkpoint of other data, start from byte 0");
+                return 0;
+            }
+
+            return offset;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static byte[] hashOf(ByteBuffer data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            /* Every Android version has SHA-256 */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
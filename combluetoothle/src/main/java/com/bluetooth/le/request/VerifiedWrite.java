@@ -0,0 +1,567 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import com.bluetooth.le.FioTBluetoothLE;
+import com.bluetooth.le.utils.ByteBufferChunker;
+import com.bluetooth.le.utils.ByteUtils;
+import com.bluetooth.le.utils.TimeoutScheduler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.Checksum;
+
+/**
+ * Writes a buffer chunk by chunk and checks what the peripheral received, see
+ * {@link VerifyPolicy}. Each step is a queued request, no thread waits in between.
+ */
+public class VerifiedWrite {
+    private static final String TAG = "VerifiedWrite";
+
+    private static final int DEFAULT_MAX_READS = 3;
+    private static final long DEFAULT_REREAD_DELAY_MILLISEC = 50;
+    private static final int DEFAULT_MAX_REWRITES = 3;
+    private static final long DEFAULT_VERIFY_TIMEOUT_MILLISEC = 10000;
+
+    /* Received bytes field of a checksum status value */
+    private static final int STATUS_OFFSET_SIZE = 4;
+
+    /* Bytes copied at a time to checksum a direct buffer */
+    private static final int CHECKSUM_BLOCK_SIZE = 512;
+
+    private final RequestHandler handler;
+    private final BluetoothGattCharacteristic characteristic;
+    private final ByteBuffer buffer;
+    private final ByteBufferChunker chunker;
+    private final int chunkSize;
+    private final ProgressTracker progress;
+    private final RequestFuture future = new RequestFuture(RequestCmd.WRITE);
+    private final Runnable reread = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+    private final Runnable verifyTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.e(TAG, "verify timeout at byte " + getBytesSent());
+            fail(RequestFuture.STATUS_VERIFY_FAILED);
+        }
+    };
+    private final RequestFuture.Callback onWritten = new RequestFuture.Callback() {
+        @Override
+        public void onComplete(RequestFuture step) {
+            written(step);
+        }
+    };
+    private final RequestFuture.Callback onRead = new RequestFuture.Callback() {
+        @Override
+        public void onComplete(RequestFuture step) {
+            read(step);
+        }
+    };
+    private final RequestFuture.Callback onTruncated = new RequestFuture.Callback() {
+        @Override
+        public void onComplete(RequestFuture step) {
+            truncated(step);
+        }
+    };
+    private volatile VerifyPolicy policy = VerifyPolicy.EVERY_CHUNK;
+    private volatile RequestPriority priority = RequestPriority.INTERACTIVE;
+    private volatile Object tag;
+    private volatile int maxReads = DEFAULT_MAX_READS;
+    private volatile long rereadDelayMillisec = DEFAULT_REREAD_DELAY_MILLISEC;
+    private volatile int maxRewrites = DEFAULT_MAX_REWRITES;
+    private volatile long verifyTimeoutMillisec = DEFAULT_VERIFY_TIMEOUT_MILLISEC;
+    private volatile FioTBluetoothLE.SendListener listener;
+    /* State of the chunks since the last good check, guarded by this */
+    private byte[] chunk;
+    private Checksum checksum;
+    private int uncheckedChunks;
+    private int reads;
+    private int rewrites;
+    /* Bytes held by the peripheral according to its last status value */
+    private long peerBytes;
+    private volatile int bytesSent;
+    private RequestFuture step;
+    private ScheduledFuture<?> timeout;
+
+    /* Write of one chunk, its retries by the queue count as retransmissions */
+    private class ChunkFuture extends RequestFuture {
+        ChunkFuture() {
+            super(RequestCmd.WRITE);
+        }
+
+        @Override
+        void onRetry() {
+            progress.onRetransmission(1);
+        }
+    }
+
+    /**
+     * Write buffer from its position to its limit, neither is moved
+     *
+     * @param buffer must not change until the future completes
+     */
+    public VerifiedWrite(RequestHandler handler,
+                         BluetoothGattCharacteristic characteristic,
+                         ByteBuffer buffer,
+                         int chunkSize) {
+        this.handler = handler;
+        this.characteristic = characteristic;
+        this.buffer = buffer.duplicate();
+        this.chunker = new ByteBufferChunker(buffer, chunkSize);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.progress = new ProgressTracker(buffer.remaining());
+
+        future.addCallback(new RequestFuture.Callback() {
+            @Override
+            public void onComplete(RequestFuture future) {
+                progress.onDone(bytesSent);
+            }
+        });
+    }
+
+    /**
+     * VerifyPolicy.EVERY_CHUNK by default
+     */
+    public void setPolicy(VerifyPolicy policy) {
+        this.policy = policy != null ? policy : VerifyPolicy.EVERY_CHUNK;
+    }
+
+    public void setPriority(RequestPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * RequestHandler.cancel(tag) drops the step not sent yet and fails the write
+     */
+    public void setTag(Object tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * @param maxReads            reads of a failed check before chunks are written again, default 3
+     * @param rereadDelayMillisec wait before reading a failed check again, default 50 ms
+     */
+    public void setReadBack(int maxReads, long rereadDelayMillisec) {
+        this.maxReads = Math.max(1, maxReads);
+        this.rereadDelayMillisec = Math.max(0, rereadDelayMillisec);
+    }
+
+    /**
+     * Times the chunks of a check are written again before the write fails, default 3
+     */
+    public void setMaxRewrites(int maxRewrites) {
+        this.maxRewrites = Math.max(0, maxRewrites);
+    }
+
+    /**
+     * Time chunks have from their first write to a good check, default 10 s, 0 for none
+     */
+    public void setVerifyTimeout(long verifyTimeoutMillisec) {
+        this.verifyTimeoutMillisec = Math.max(0, verifyTimeoutMillisec);
+    }
+
+    /**
+     * Called with the number of bytes verified after every good check, on the GATT
+     * callback thread
+     */
+    public void setListener(FioTBluetoothLE.SendListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Report bytes verified, throughput, rewrites and chunk latencies to listener, at most
+     * once per interval and once at the end. Bytes resumed from a checkpoint count as
+     * acknowledged but not in the throughput.
+     */
+    public void setProgressListener(ProgressListener listener, long intervalMillisec) {
+        progress.setListener(listener, intervalMillisec);
+    }
+
+    /**
+     * Skip bytes the peripheral already verified, e.g. before a disconnect, see
+     * {@link TransferSession}. Call before start().
+     */
+    public synchronized void resumeFrom(int bytes) {
+        if (step == null) {
+            chunker.seek(bytes);
+            bytesSent = chunker.getBytesConsumed();
+        }
+    }
+
+    /**
+     * Write the first chunk, set options before
+     *
+     * @return completes once every chunk is verified, or with the status of the first failure
+     */
+    public RequestFuture start() {
+        Request request;
+
+        synchronized (this) {
+            if (step != null) {
+                return future;
+            }
+
+            if (policy.isChecksum()) {
+                checksum = bytesSent > 0 ? checksumOf(bytesSent) : policy.newChecksum();
+            }
+
+            progress.setStartBytes(bytesSent);
+            request = nextChunk();
+        }
+
+        send(request, onWritten);
+        return future;
+    }
+
+    public RequestFuture getFuture() {
+        return future;
+    }
+
+    /**
+     * Stop after the step in flight, the chunk it writes may still reach the peripheral
+     */
+    public boolean cancel() {
+        return fail(RequestFuture.STATUS_CANCELLED);
+    }
+
+    /**
+     * @return bytes written and verified so far
+     */
+    public int getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Called with the lock held
+     *
+     * @return write of the next chunk, null once every chunk is verified
+     */
+    private Request nextChunk() {
+        if (!chunker.hasNext()) {
+            TimeoutScheduler.cancel(timeout);
+            return null;
+        }
+
+        /* The verify timeout covers every chunk up to the next good check, rewrites included */
+        if (timeout == null && verifyTimeoutMillisec > 0) {
+            timeout = TimeoutScheduler.getInstance().schedule(verifyTimeout, verifyTimeoutMillisec);
+        }
+
+        /* The array is not touched again until the write completes */
+        chunk = chunker.nextArray(chunk);
+        step = new ChunkFuture();
+        progress.onChunkStarted();
+        return Request.obtain(RequestCmd.WRITE, characteristic, chunk, 0, chunk.length, step);
+    }
+
+    /* Called with the lock held */
+    private Request readCheck() {
+        BluetoothGattCharacteristic target = policy.isChecksum() ?
+                policy.getStatusCharacteristic() : characteristic;
+
+        step = new RequestFuture(RequestCmd.READ);
+        Request request = new Request(RequestCmd.READ, new RequestData(target, null), step);
+        /* A cached value would tell nothing about the chunks written since */
+        request.setBypassCache(true);
+        return request;
+    }
+
+    /* Called with the lock held, the peripheral drops what it holds after bytes */
+    private Request truncate(int bytes) {
+        byte[] value = new byte[STATUS_OFFSET_SIZE];
+
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) (bytes >>> (8 * i));
+        }
+
+        step = new RequestFuture(RequestCmd.WRITE);
+        RequestData data = new RequestData(policy.getStatusCharacteristic(), value);
+        return new Request(RequestCmd.WRITE, data, step);
+    }
+
+    /* Called with the lock held, the check passed */
+    private void verified() {
+        TimeoutScheduler.cancel(timeout);
+        timeout = null;
+        bytesSent = chunker.getBytesConsumed();
+        uncheckedChunks = 0;
+        reads = 0;
+        rewrites = 0;
+    }
+
+    /**
+     * Called with the lock held, go back to the first byte the peripheral lacks
+     *
+     * @return false if the rewrite budget is spent
+     */
+    private boolean rewind(int bytesReceived) {
+        if (rewrites++ >= maxRewrites) {
+            return false;
+        }
+
+        Log.w(TAG, "check failed, write again from byte " + bytesReceived);
+        progress.onRetransmission((chunker.getBytesConsumed() - bytesReceived + chunkSize - 1) / chunkSize);
+        chunker.seek(bytesReceived);
+        bytesSent = bytesReceived;
+        uncheckedChunks = 0;
+        reads = 0;
+
+        if (checksum != null) {
+            checksum = checksumOf(bytesReceived);
+        }
+
+        return true;
+    }
+
+    /**
+     * Queue a step, never with the lock held: enqueue() may block on a full queue
+     * or complete other requests on this thread
+     */
+    private void send(Request request, RequestFuture.Callback callback) {
+        if (request == null) {
+            future.completePart(BluetoothGatt.GATT_SUCCESS);
+            return;
+        }
+
+        RequestFuture sent = request.getFuture();
+        request.setPriority(priority);
+        request.setTag(tag);
+
+        /* A refused request already failed its future, the callback reports it */
+        offer(request, sent);
+        sent.addCallback(callback);
+    }
+
+    /**
+     * Steps are sent from GATT and timer callbacks, so they never wait for room in the
+     * queue, one that doesn't fit is offered again shortly
+     */
+    private void offer(final Request request, final RequestFuture sent) {
+        if (handler.enqueueInternal(request) || sent.isDone()) {
+            return;
+        }
+
+        if (future.isDone()) {
+            request.recycle();
+            return;
+        }
+
+        TimeoutScheduler.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                offer(request, sent);
+            }
+        }, RequestHandler.OFFER_RETRY_MILLISEC);
+    }
+
+    private void check() {
+        Request request;
+
+        synchronized (this) {
+            if (future.isDone()) {
+                return;
+            }
+
+            request = readCheck();
+        }
+
+        send(request, onRead);
+    }
+
+    private void written(RequestFuture written) {
+        Request request = null;
+        boolean checking = false;
+        int verified;
+
+        synchronized (this) {
+            if (written != step || future.isDone()) {
+                return;
+            }
+
+            verified = bytesSent;
+
+            if (written.isSuccess()) {
+                if (checksum != null) {
+                    checksum.update(chunk, 0, chunk.length);
+                }
+
+                int interval = policy.getInterval();
+                uncheckedChunks++;
+                checking = !chunker.hasNext() || (interval > 0 && uncheckedChunks >= interval);
+                request = checking ? readCheck() : nextChunk();
+            }
+        }
+
+        if (request == null) {
+            fail(written.getStatus());
+            return;
+        }
+
+        progress.onChunkAcknowledged(verified);
+        send(request, checking ? onRead : onWritten);
+    }
+
+    private void read(RequestFuture read) {
+        Request request = null;
+        boolean passed = false;
+        boolean reread = false;
+        boolean truncating = false;
+        int failure = BluetoothGatt.GATT_SUCCESS;
+
+        synchronized (this) {
+            if (read != step || future.isDone()) {
+                return;
+            }
+
+            int received = read.isSuccess() ? bytesReceived(read.getValue()) : -1;
+
+            if (!read.isSuccess()) {
+                failure = read.getStatus();
+            } else if (received == chunker.getBytesConsumed()) {
+                passed = true;
+                verified();
+                request = nextChunk();
+            } else if (++reads < maxReads) {
+                Log.i(TAG, "check failed, read again");
+                reread = true;
+            } else if (received >= bytesSent && rewind(received)) {
+                truncating = checksum != null && received < peerBytes;
+                request = truncating ? truncate(received) : nextChunk();
+            } else {
+                failure = RequestFuture.STATUS_VERIFY_FAILED;
+            }
+        }
+
+        if (failure != BluetoothGatt.GATT_SUCCESS) {
+            fail(failure);
+        } else if (reread) {
+            if (rereadDelayMillisec > 0) {
+                TimeoutScheduler.getInstance().schedule(this.reread, rereadDelayMillisec);
+            } else {
+                check();
+            }
+        } else {
+            if (passed) {
+                FioTBluetoothLE.SendListener listener = this.listener;
+                if (listener != null) {
+                    listener.sent(bytesSent);
+                }
+            }
+
+            send(request, truncating ? onTruncated : onWritten);
+        }
+    }
+
+    private void truncated(RequestFuture written) {
+        Request request;
+
+        synchronized (this) {
+            if (written != step || future.isDone()) {
+                return;
+            }
+
+            request = written.isSuccess() ? nextChunk() : null;
+        }
+
+        if (!written.isSuccess()) {
+            Log.e(TAG, "status write refused, can't send the corrupted range again");
+            fail(RequestFuture.STATUS_VERIFY_FAILED);
+            return;
+        }
+
+        send(request, onWritten);
+    }
+
+    /**
+     * Called with the lock held
+     *
+     * @return bytes of the transfer the peripheral holds correctly, all of them if the check
+     * passed, the last good check if the chunks since are missing or corrupted, -1 if it
+     * doesn't hold the bytes of the last good check
+     */
+    private int bytesReceived(byte[] value) {
+        int consumed = chunker.getBytesConsumed();
+
+        if (checksum == null) {
+            return ByteUtils.compare2Array(value, chunk) ? consumed : bytesSent;
+        }
+
+        int size = policy.getChecksumSize();
+        if (value == null || value.length < STATUS_OFFSET_SIZE + size) {
+            return -1;
+        }
+
+        long received = readLittleEndian(value, 0, STATUS_OFFSET_SIZE);
+        long crc = readLittleEndian(value, STATUS_OFFSET_SIZE, size);
+
+        peerBytes = received;
+
+        if (received < bytesSent || received > consumed) {
+            return -1;
+        }
+
+        if (received == consumed && crc == checksum.getValue()) {
+            return consumed;
+        }
+
+        /* Lost the tail, the range after what it holds is sent again */
+        if (received < consumed && crc == checksumOf((int) received).getValue()) {
+            return (int) received;
+        }
+
+        /* Corrupted since the last good check, that whole range is sent again */
+        return bytesSent;
+    }
+
+    /* Checksum of the first bytes of the transfer, only computed after a failed check */
+    private Checksum checksumOf(int bytes) {
+        Checksum prefix = policy.newChecksum();
+        ByteBuffer range = buffer.duplicate();
+        range.limit(range.position() + bytes);
+
+        ByteBufferChunker walker = new ByteBufferChunker(range, CHECKSUM_BLOCK_SIZE);
+        byte[] block = null;
+        while (walker.hasNext()) {
+            block = walker.nextArray(block);
+            prefix.update(block, 0, block.length);
+        }
+
+        return prefix;
+    }
+
+    private static long readLittleEndian(byte[] value, int offset, int size) {
+        long result = 0;
+
+        for (int i = size - 1; i >= 0; i--) {
+            result = (result << 8) | (value[offset + i] & 0xFF);
+        }
+
+        return result;
+    }
+
+    private boolean fail(int status) {
+        RequestFuture current;
+
+        synchronized (this) {
+            TimeoutScheduler.cancel(timeout);
+            current = step;
+        }
+
+        if (!future.completePart(status)) {
+            return false;
+        }
+
+        /* Drop the step still queued, the future is done so its callback is ignored */
+        if (current != null) {
+            current.cancel();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bluetooth.le.utils.Crc16;
+
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * How a {@link VerifiedWrite} checks what the peripheral received: read back the data
+ * characteristic, or read a status characteristic holding the bytes received (uint32) then
+ * their CRC16/CCITT-FALSE or CRC32, little endian. If the CRC shows bytes corrupted since the
+ * last good check, the number of bytes to keep (uint32) is written to the status
+ * characteristic, the peripheral drops the ones after it and they are sent again.
+ */
+public class VerifyPolicy {
+    public enum ChecksumType {
+        CRC16,
+        CRC32
+    }
+
+    /* Read back every chunk */
+    public static final VerifyPolicy EVERY_CHUNK = readBack(1);
+
+    private final int interval;
+    private final BluetoothGattCharacteristic statusCharacteristic;
+    private final ChecksumType checksumType;
+
+    /**
+     * Only the last chunk of each group is read back and compared, a bad chunk before it
+     * goes unnoticed. Use a checksum to cover every byte with fewer reads.
+     *
+     * @param everyChunks read back after this many chunks, 1 for every chunk
+     */
+    public static VerifyPolicy readBack(int everyChunks) {
+        return new VerifyPolicy(Math.max(1, everyChunks), null, null);
+    }
+
+    /**
+     * @param statusCharacteristic readable and writable characteristic with received bytes and CRC
+     * @param everyChunks          check after this many chunks, 0 at end of transfer only
+     */
+    public static VerifyPolicy checksum(BluetoothGattCharacteristic statusCharacteristic,
+                                        ChecksumType type,
+                                        int everyChunks) {
+        return new VerifyPolicy(Math.max(0, everyChunks), statusCharacteristic, type);
+    }
+
+    private VerifyPolicy(int interval,
+                         BluetoothGattCharacteristic statusCharacteristic,
+                         ChecksumType checksumType) {
+        this.interval = interval;
+        this.statusCharacteristic = statusCharacteristic;
+        this.checksumType = checksumType;
+    }
+
+    /**
+     * @return chunks between two checks, 0 for end of transfer only
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    public boolean isChecksum() {
+        return statusCharacteristic != null;
+    }
+
+    public BluetoothGattCharacteristic getStatusCharacteristic() {
+        return statusCharacteristic;
+    }
+
+    public ChecksumType getChecksumType() {
+        return checksumType;
+    }
+
+    Checksum newChecksum() {
+        return checksumType == ChecksumType.CRC16 ? new Crc16() : new CRC32();
+    }
+
+    /**
+     * @return bytes of the CRC in the status value
+     */
+    int getChecksumSize() {
+        return checksumType == ChecksumType.CRC16 ? 2 : 4;
+    }
+}
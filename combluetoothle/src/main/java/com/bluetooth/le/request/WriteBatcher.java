@@ -0,0 +1,249 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bluetooth.le.utils.TimeoutScheduler;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Joins small writes to one characteristic into one packet, Nagle style: a batch is queued
+ * once it fills a packet or when its window ends. Writes keep their order.
+ */
+public class WriteBatcher {
+    private final RequestHandler handler;
+    private final BluetoothGattCharacteristic characteristic;
+    private final long windowMillisec;
+    /* Batches closed under the lock, queued outside it in the same order */
+    private final Queue<Request> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private byte[] buffer;
+    private int length;
+    private RequestCmd cmd;
+    private RequestPriority priority;
+    private RequestFuture future;
+    private ScheduledFuture<?> timer;
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            send(false);
+        }
+    };
+
+    /**
+     * @param windowMillisec longest time the first write of a batch waits
+     */
+    public WriteBatcher(RequestHandler handler,
+                        BluetoothGattCharacteristic characteristic,
+                        long windowMillisec) {
+        this.handler = handler;
+        this.characteristic = characteristic;
+        this.windowMillisec = windowMillisec;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return characteristic;
+    }
+
+    /**
+     * Add data to the batch, it's copied
+     *
+     * @param cmd        WRITE or WRITE_NO_RESPONSE
+     * @param maxPayload size of a packet, MTU - 3
+     * @return future of the batch, or of the packets of data if it's empty or larger than
+     * a packet
+     */
+    public RequestFuture write(RequestCmd cmd, byte[] data, RequestPriority priority, int maxPayload) {
+        if (data.length == 0 || data.length > maxPayload) {
+            return writeThrough(cmd, ByteBuffer.wrap(data.clone()), priority, null, 0, maxPayload);
+        }
+
+        RequestFuture batch;
+
+        synchronized (this) {
+            if (length > 0 && (cmd != this.cmd || priority != this.priority ||
+                    length + data.length > buffer.length)) {
+                close();
+            }
+
+            if (future == null) {
+                open(cmd, priority, maxPayload);
+            }
+
+            System.arraycopy(data, 0, buffer, length, data.length);
+            length += data.length;
+            batch = future;
+
+            if (length >= maxPayload) {
+                close();
+            }
+        }
+
+        send(true);
+        return batch;
+    }
+
+    /**
+     * Queue the batch, then data from its position to its limit cut into packets, not
+     * copied
+     *
+     * @param deadline see Request.setDeadline(), 0 for none
+     * @return future of the packets of data
+     */
+    public RequestFuture writeThrough(RequestCmd cmd,
+                                      ByteBuffer data,
+                                      RequestPriority priority,
+                                      Object tag,
+                                      long deadline,
+                                      int maxPayload) {
+        int end = data.limit();
+        int numChunks = Math.max(1, (data.remaining() + maxPayload - 1) / maxPayload);
+        RequestFuture packets = new RequestFuture(cmd, numChunks);
+
+        synchronized (this) {
+            if (future != null) {
+                close();
+            }
+
+            int index = data.position();
+            do {
+                int length = Math.min(maxPayload, end - index);
+                Request request = Request.obtain(cmd, characteristic, data, index, length, packets);
+                index += length;
+                request.setPriority(priority);
+                request.setTag(tag);
+                request.setDeadline(deadline);
+                outbox.add(request);
+            } while (index < end);
+        }
+
+        send(true);
+        return packets;
+    }
+
+    /**
+     * Queue the batch now
+     */
+    public void flush() {
+        synchronized (this) {
+            if (future != null) {
+                close();
+            }
+        }
+
+        send(true);
+    }
+
+    /**
+     * Drop the batch, its writes complete with STATUS_CANCELLED
+     */
+    public void cancel() {
+        RequestFuture batch;
+
+        synchronized (this) {
+            batch = future;
+            TimeoutScheduler.cancel(timer);
+            reset();
+        }
+
+        if (batch != null) {
+            batch.cancel();
+        }
+    }
+
+    private void open(RequestCmd cmd, RequestPriority priority, int maxPayload) {
+        final RequestFuture batch = new RequestFuture(cmd);
+
+        this.cmd = cmd;
+        this.priority = priority;
+        this.future = batch;
+        this.buffer = new byte[maxPayload];
+        this.timer = TimeoutScheduler.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush(batch);
+            }
+        }, windowMillisec);
+    }
+
+    /**
+     * Window of batch ended, it's queued unless it was already
+     */
+    private void flush(RequestFuture batch) {
+        synchronized (this) {
+            if (future == batch) {
+                close();
+            }
+        }
+
+        /* On the timer thread, which must not wait for room in the queue */
+        send(false);
+    }
+
+    /**
+     * Hand the batch to the outbox, its array goes with it
+     */
+    private void close() {
+        Request request = Request.obtain(cmd, characteristic, buffer, 0, length, future);
+        request.setPriority(priority);
+        outbox.add(request);
+
+        TimeoutScheduler.cancel(timer);
+        reset();
+    }
+
+    private void reset() {
+        buffer = null;
+        length = 0;
+        cmd = null;
+        priority = null;
+        future = null;
+        timer = null;
+    }
+
+    /**
+     * Queue the outbox in order. Without wait a request that doesn't fit stays first in the
+     * outbox and is offered again shortly.
+     */
+    private void send(boolean wait) {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+
+        for (;;) {
+            Request request;
+            while ((request = outbox.peek()) != null) {
+                RequestFuture packets = request.getFuture();
+
+                /* Cancelled, or an earlier packet was refused */
+                if (packets.isDone()) {
+                    outbox.poll();
+                    request.recycle();
+                    continue;
+                }
+
+                if (wait) {
+                    outbox.poll();
+                    handler.enqueue(request);
+                } else if (handler.enqueueInternal(request) || packets.isDone()) {
+                    outbox.poll();
+                } else {
+                    TimeoutScheduler.getInstance().schedule(retry, RequestHandler.OFFER_RETRY_MILLISEC);
+                    break;
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+}
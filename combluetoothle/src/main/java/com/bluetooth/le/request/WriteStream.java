@@ -0,0 +1,428 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import com.bluetooth.le.FioTBluetoothLE;
+import com.bluetooth.le.utils.TimeoutScheduler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams data to a characteristic with writes without response, a small window of chunks
+ * stays queued so the next one starts from the write callback of the previous one.
+ * <p>
+ * A striped stream deals chunks round-robin to several characteristics, each chunk then
+ * starts with its sequence number, uint16 little endian from 0, wrapping.
+ */
+public class WriteStream {
+    private static final String TAG = "WriteStream";
+
+    /* Sequence number at the start of every chunk of a striped stream */
+    public static final int SEQUENCE_HEADER_SIZE = 2;
+
+    private static final int DEFAULT_WINDOW = 4;
+
+    private final RequestHandler handler;
+    private final BluetoothGattCharacteristic[] characteristics;
+    private final ByteBuffer buffer;
+    private final ChunkSource source;
+    private final boolean striped;
+    private final int headerSize;
+    private final int chunkSize;
+    private final ProgressTracker progress;
+    private final StreamFuture future = new StreamFuture();
+    private final AtomicInteger sentChunks = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    /* Arrays of source chunks, queued in order, free again once their chunk is sent */
+    private final Queue<byte[]> queuedSlots = new ConcurrentLinkedQueue<>();
+    private final Queue<byte[]> freeSlots = new ConcurrentLinkedQueue<>();
+    /* Only touched by the thread that owns fill() */
+    private int queuedChunks;
+    private int position;
+    private ByteBuffer view;
+    private boolean exhausted;
+    private Request deferred;
+    private volatile long bytesQueued;
+    private volatile RequestPriority priority = RequestPriority.BULK;
+    private volatile Object tag;
+    private volatile int window = DEFAULT_WINDOW;
+    private volatile FioTBluetoothLE.SendListener listener;
+
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            fill();
+        }
+    };
+
+    /**
+     * Counts chunks as they complete to refill the window. One part stands for the chunks
+     * not read yet, it completes at the end of the data.
+     */
+    private class StreamFuture extends RequestFuture {
+        StreamFuture() {
+            super(RequestCmd.WRITE_NO_RESPONSE, 1);
+        }
+
+        @Override
+        boolean completePart(int status) {
+            boolean sent = status == BluetoothGatt.GATT_SUCCESS && !isDone();
+
+            /* Counted first, the last chunk completes the stream */
+            if (sent) {
+                sentChunks.incrementAndGet();
+            }
+
+            boolean completed = super.completePart(status);
+
+            if (sent) {
+                onChunkSent();
+            }
+
+            if (completed) {
+                progress.onDone(getBytesSent());
+            }
+
+            return completed;
+        }
+
+        @Override
+        void onRetry() {
+            progress.onRetransmission(1);
+        }
+
+        void endOfData() {
+            if (super.completePart(BluetoothGatt.GATT_SUCCESS)) {
+                progress.onDone(getBytesSent());
+            }
+        }
+    }
+
+    /**
+     * @param data      not copied, must not change until the future completes
+     * @param chunkSize bytes per write, usually MTU - 3
+     */
+    public WriteStream(RequestHandler handler,
+                       BluetoothGattCharacteristic characteristic,
+                       byte[] data,
+                       int offset,
+                       int length,
+                       int chunkSize) {
+        this(handler, characteristic, ByteBuffer.wrap(data, offset, length), chunkSize);
+    }
+
+    /**
+     * Stream buffer from its position to its limit, neither is moved
+     *
+     * @param buffer heap, direct or memory-mapped, must not change until the future completes
+     */
+    public WriteStream(RequestHandler handler,
+                       BluetoothGattCharacteristic characteristic,
+                       ByteBuffer buffer,
+                       int chunkSize) {
+        this(handler, new BluetoothGattCharacteristic[]{characteristic}, buffer, null, false, chunkSize);
+    }
+
+    /**
+     * Stream source until it ends, reading it as the window moves
+     */
+    public WriteStream(RequestHandler handler,
+                       BluetoothGattCharacteristic characteristic,
+                       ChunkSource source,
+                       int chunkSize) {
+        this(handler, new BluetoothGattCharacteristic[]{characteristic}, null, source, false, chunkSize);
+    }
+
+    /**
+     * Stripe buffer over characteristics, chunks are copied with their sequence number
+     *
+     * @param chunkSize bytes per write, sequence number included
+     */
+    public WriteStream(RequestHandler handler,
+                       BluetoothGattCharacteristic[] characteristics,
+                       ByteBuffer buffer,
+                       int chunkSize) {
+        this(handler, characteristics.clone(), buffer, null, true, chunkSize);
+    }
+
+    private WriteStream(RequestHandler handler,
+                        BluetoothGattCharacteristic[] characteristics,
+                        ByteBuffer buffer,
+                        ChunkSource source,
+                        boolean striped,
+                        int chunkSize) {
+        if (characteristics.length == 0) {
+            throw new IllegalArgumentException("no characteristic");
+        }
+
+        this.handler = handler;
+        this.characteristics = characteristics;
+        this.buffer = buffer;
+        this.source = source;
+        this.striped = striped;
+        this.headerSize = striped ? SEQUENCE_HEADER_SIZE : 0;
+        this.chunkSize = Math.max(headerSize + 1, chunkSize);
+        this.progress = new ProgressTracker(buffer != null ? buffer.remaining() : -1);
+
+        if (buffer != null) {
+            this.position = buffer.position();
+        }
+    }
+
+    /**
+     * Lane of the chunks, BULK by default so commands and reads overtake the stream
+     */
+    public void setPriority(RequestPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * RequestHandler.cancel(tag) drops the chunks not sent yet
+     */
+    public void setTag(Object tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * Chunks queued ahead of the one in flight, more absorbs scheduling jitter of the
+     * callback thread, fewer leaves more room to other requests. Default 4.
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Called with the number of bytes sent after every chunk, on the GATT callback thread
+     */
+    public void setListener(FioTBluetoothLE.SendListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Report bytes sent, throughput, retries and chunk latencies to listener, at most once
+     * per interval and once at the end. Can be set after start(), e.g. on the stream
+     * FioTManager returns.
+     */
+    public void setProgressListener(ProgressListener listener, long intervalMillisec) {
+        progress.setListener(listener, intervalMillisec);
+    }
+
+    /**
+     * Queue the first window of chunks
+     *
+     * @return handle of the whole stream
+     */
+    public RequestFuture start() {
+        fill();
+        return future;
+    }
+
+    public RequestFuture getFuture() {
+        return future;
+    }
+
+    /**
+     * Stop the stream, chunks already handed to the controller are still sent
+     */
+    public boolean cancel() {
+        return future.cancel();
+    }
+
+    /**
+     * @return bytes handed to the controller so far
+     */
+    public long getBytesSent() {
+        return Math.min(bytesQueued, (long) sentChunks.get() * (chunkSize - headerSize));
+    }
+
+    private void onChunkSent() {
+        progress.onChunkAcknowledged(getBytesSent());
+
+        if (buffer == null || striped) {
+            freeSlots.add(queuedSlots.poll());
+        }
+
+        FioTBluetoothLE.SendListener listener = this.listener;
+        if (listener != null) {
+            listener.sent((int) getBytesSent());
+        }
+
+        fill();
+    }
+
+    /**
+     * Top the window up. Callers that find another thread filling leave it the work,
+     * so chunks are queued in order without holding a lock across enqueue().
+     */
+    private void fill() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+
+        for (;;) {
+            while (!future.isDone()) {
+                Request request = deferred;
+
+                if (request == null) {
+                    if (exhausted || queuedChunks - sentChunks.get() >= window) {
+                        break;
+                    }
+
+                    request = nextChunk();
+
+                    if (request == null) {
+                        exhausted = true;
+                        future.endOfData();
+                        break;
+                    }
+
+                    queuedChunks++;
+                    progress.onChunkStarted();
+                }
+
+                /* Called back on the GATT thread, so never wait for room in the queue */
+                if (handler.enqueueInternal(request)) {
+                    deferred = null;
+                    continue;
+                }
+
+                /* Refused, the future is already failed */
+                if (future.isDone()) {
+                    deferred = null;
+                    break;
+                }
+
+                /* Queue full, offered again on the next ack, or soon if none is coming */
+                deferred = request;
+                if (queuedChunks - 1 == sentChunks.get()) {
+                    TimeoutScheduler.getInstance().schedule(refill, RequestHandler.OFFER_RETRY_MILLISEC);
+                }
+                break;
+            }
+
+            if (future.isDone() && deferred != null) {
+                deferred.recycle();
+                deferred = null;
+            }
+
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return next chunk, its part added to the future, null at the end of the data
+     */
+    private Request nextChunk() {
+        BluetoothGattCharacteristic characteristic = characteristics[queuedChunks % characteristics.length];
+        int size;
+        Request request;
+
+        if (buffer != null && !striped) {
+            size = Math.max(0, Math.min(chunkSize, buffer.limit() - position));
+
+            /* Empty data still makes one empty write, like a write of an empty array */
+            if (size == 0 && queuedChunks > 0) {
+                return null;
+            }
+
+            request = Request.obtain(RequestCmd.WRITE_NO_RESPONSE,
+                    characteristic, buffer, position, size, future);
+        } else {
+            byte[] slot = freeSlot();
+
+            size = buffer != null ? copy(slot) : read(slot);
+            if (size == 0 && (buffer == null || queuedChunks > 0)) {
+                freeSlots.add(slot);
+                return null;
+            }
+
+            if (striped) {
+                slot[0] = (byte) queuedChunks;
+                slot[1] = (byte) (queuedChunks >>> 8);
+            }
+
+            queuedSlots.add(slot);
+            request = Request.obtain(RequestCmd.WRITE_NO_RESPONSE,
+                    characteristic, slot, 0, headerSize + size, future);
+        }
+
+        position += size;
+        bytesQueued += size;
+        future.addPart();
+        request.setPriority(priority);
+        request.setTag(tag);
+        return request;
+    }
+
+    /**
+     * setValue() keeps the array a chunk is written from, it's reused once no characteristic
+     * of the stream holds it any more
+     */
+    private byte[] freeSlot() {
+        byte[] slot = freeSlots.poll();
+
+        if (slot != null) {
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                if (characteristic.getValue() == slot) {
+                    freeSlots.add(slot);
+                    return new byte[chunkSize];
+                }
+            }
+
+            return slot;
+        }
+
+        return new byte[chunkSize];
+    }
+
+    /**
+     * Copy the next bytes of the buffer after the header of chunk
+     *
+     * @return bytes copied, 0 at the end of the data
+     */
+    private int copy(byte[] chunk) {
+        if (view == null) {
+            view = buffer.duplicate();
+        }
+
+        int size = Math.max(0, Math.min(chunk.length - headerSize, buffer.limit() - position));
+        view.limit(position + size);
+        view.position(position);
+        view.get(chunk, headerSize, size);
+        return size;
+    }
+
+    /**
+     * Fill chunk after its header from the source, only the last one is shorter
+     *
+     * @return bytes read, 0 at the end of the data or if reading failed
+     */
+    private int read(byte[] chunk) {
+        int size = 0;
+
+        try {
+            while (headerSize + size < chunk.length) {
+                int read = source.read(chunk, headerSize + size, chunk.length - headerSize - size);
+                if (read <= 0) break;
+                size += read;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "can't read source: " + e.getMessage());
+            future.completePart(RequestFuture.STATUS_SOURCE_ERROR);
+            return 0;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,88 @@
+package com.bluetooth.le.utils;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a ByteBuffer chunk by chunk without copying it, the source is left alone.
+ */
+public class ByteBufferChunker {
+    private final ByteBuffer view;
+    private final int start;
+    private final int end;
+    private final int chunkSize;
+    private int position;
+
+    /**
+     * Chunks cover source from its position to its limit
+     */
+    public ByteBufferChunker(ByteBuffer source, int chunkSize) {
+        this.view = source.duplicate();
+        this.start = source.position();
+        this.end = source.limit();
+        this.chunkSize = Math.max(1, chunkSize);
+        this.position = start;
+    }
+
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    /**
+     * @return bytes not walked yet
+     */
+    public int remaining() {
+        return end - position;
+    }
+
+    /**
+     * @return bytes walked so far
+     */
+    public int getBytesConsumed() {
+        return position - start;
+    }
+
+    /**
+     * @return view of the next chunk, the same object every call, valid until the next call
+     */
+    public ByteBuffer next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        int size = Math.min(chunkSize, end - position);
+        view.limit(end);
+        view.position(position);
+        view.limit(position + size);
+        position += size;
+        return view;
+    }
+
+    /**
+     * Copy the next chunk into scratch, or into a new array when its length differs
+     * (e.g. the last chunk), keep the returned array as scratch of the next call
+     *
+     * @return array holding exactly the chunk
+     */
+    public byte[] nextArray(byte[] scratch) {
+        ByteBuffer chunk = next();
+        int size = chunk.remaining();
+        byte[] array = scratch != null && scratch.length == size ? scratch : new byte[size];
+        chunk.get(array);
+        return array;
+    }
+
+    /**
+     * Walk again from the first chunk
+     */
+    public void rewind() {
+        position = start;
+    }
+
+    /**
+     * Continue from bytesConsumed, e.g. to send a range again
+     */
+    public void seek(int bytesConsumed) {
+        position = start + Math.max(0, Math.min(bytesConsumed, end - start));
+    }
+}
@@ -0,0 +1,51 @@
+package com.bluetooth.le.utils;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-16/CCITT-FALSE: polynomial 0x1021, initial value 0xFFFF, no reflection, the CRC16
+ * most BLE firmware update protocols use. Table driven, one lookup per byte.
+ */
+public class Crc16 implements Checksum {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+
+            TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private int crc = 0xFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ b) & 0xFF]) & 0xFFFF;
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int crc = this.crc;
+
+        for (int i = off; i < off + len; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ b[i]) & 0xFF]) & 0xFFFF;
+        }
+
+        this.crc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return crc;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFF;
+    }
+}
@@ -0,0 +1,82 @@
+package com.bluetooth.le.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * zlib codec, one Deflater reset between payloads. Heap buffers are deflated in place,
+ * direct and mapped ones through a small input block. release() ends the Deflater.
+ */
+class DeflateCodec extends PayloadCodec {
+    private static final int INPUT_BLOCK = 4096;
+
+    private final int level;
+    private Deflater deflater;
+    private byte[] input;
+
+    DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return ID_DEFLATE;
+    }
+
+    @Override
+    public int maxEncodedLength(int length) {
+        /* compressBound() of zlib */
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    @Override
+    public synchronized int encode(ByteBuffer src, byte[] dst, int offset) {
+        ByteBuffer view = src.duplicate();
+        int out = offset;
+
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.reset();
+        }
+
+        for (;;) {
+            if (deflater.needsInput()) {
+                if (!view.hasRemaining()) {
+                    deflater.finish();
+                } else if (view.hasArray()) {
+                    deflater.setInput(view.array(), view.arrayOffset() + view.position(), view.remaining());
+                    view.position(view.limit());
+                } else {
+                    if (input == null) {
+                        input = new byte[INPUT_BLOCK];
+                    }
+
+                    int length = Math.min(input.length, view.remaining());
+                    view.get(input, 0, length);
+                    deflater.setInput(input, 0, length);
+                }
+            }
+
+            out += deflater.deflate(dst, out, dst.length - out);
+
+            if (deflater.finished()) {
+                return out - offset;
+            }
+
+            if (out == dst.length) {
+                throw new IllegalArgumentException("dst smaller than maxEncodedLength()");
+            }
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+
+        input = null;
+    }
+}
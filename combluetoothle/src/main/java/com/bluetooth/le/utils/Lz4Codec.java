@@ -0,0 +1,124 @@
+package com.bluetooth.le.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LZ4 block format compressor, greedy with a 4K entry hash table like LZ4's fast mode.
+ * The output decodes with LZ4_decompress_safe() or any LZ4 block decoder.
+ */
+class Lz4Codec extends PayloadCodec {
+    private static final int MIN_MATCH = 4;
+    /* The format wants the last 5 bytes as literals and no match starting in the last 12 */
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    /* Search steps grow by one every 64 bytes without a match, incompressible data is skimmed */
+    private static final int SKIP_TRIGGER = 6;
+
+    private final int[] table = new int[1 << HASH_LOG];
+
+    @Override
+    public int getId() {
+        return ID_LZ4;
+    }
+
+    @Override
+    public int maxEncodedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public synchronized int encode(ByteBuffer src, byte[] dst, int offset) {
+        ByteBuffer view = src.duplicate();
+        int base = src.position();
+        int end = src.limit();
+        int anchor = base;
+        int out = offset;
+
+        if (end - base > MF_LIMIT) {
+            int matchLimit = end - LAST_LITERALS;
+            int searchLimit = end - MF_LIMIT;
+            int i = base;
+
+            Arrays.fill(table, -1);
+
+            while (i <= searchLimit) {
+                int sequence = src.getInt(i);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = i;
+
+                if (ref < 0 || i - ref > MAX_OFFSET || src.getInt(ref) != sequence) {
+                    i += 1 + ((i - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+
+                while (i > anchor && ref > base && src.get(i - 1) == src.get(ref - 1)) {
+                    i--;
+                    ref--;
+                }
+
+                int matchEnd = i + MIN_MATCH;
+                while (matchEnd < matchLimit && src.get(matchEnd) == src.get(ref + matchEnd - i)) {
+                    matchEnd++;
+                }
+
+                int token = out;
+                out = writeSequence(view, anchor, i - anchor, dst, out);
+                dst[out++] = (byte) (i - ref);
+                dst[out++] = (byte) ((i - ref) >>> 8);
+                out = writeMatchLength(dst, token, out, matchEnd - i - MIN_MATCH);
+
+                anchor = matchEnd;
+                i = matchEnd;
+            }
+        }
+
+        out = writeSequence(view, anchor, end - anchor, dst, out);
+        return out - offset;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    /**
+     * Token and literals of a sequence, the match length nibble is left 0
+     */
+    private static int writeSequence(ByteBuffer view, int start, int length, byte[] dst, int out) {
+        int token = out++;
+
+        if (length >= 15) {
+            dst[token] = (byte) 0xF0;
+            out = writeLength(dst, out, length - 15);
+        } else {
+            dst[token] = (byte) (length << 4);
+        }
+
+        view.position(start);
+        view.get(dst, out, length);
+        return out + length;
+    }
+
+    private static int writeMatchLength(byte[] dst, int token, int out, int length) {
+        if (length >= 15) {
+            dst[token] |= 0x0F;
+            return writeLength(dst, out, length - 15);
+        }
+
+        dst[token] |= (byte) length;
+        return out;
+    }
+
+    private static int writeLength(byte[] dst, int out, int length) {
+        while (length >= 255) {
+            dst[out++] = (byte) 255;
+            length -= 255;
+        }
+
+        dst[out++] = (byte) length;
+        return out;
+    }
+}
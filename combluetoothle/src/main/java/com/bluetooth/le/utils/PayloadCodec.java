@@ -0,0 +1,80 @@
+package com.bluetooth.le.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a bulk write before it's cut into chunks. An encoded payload starts with the
+ * id of its codec, ID_NONE when it's sent as is.
+ */
+public abstract class PayloadCodec {
+    public static final int HEADER_SIZE = 1;
+
+    /* Header ids, also the bits of the capability byte read by FioTManager.negotiateCodec() */
+    public static final int ID_NONE = 0;
+    public static final int ID_DEFLATE = 1;
+    public static final int ID_LZ4 = 2;
+
+    /**
+     * zlib stream (RFC 1950), best ratio, about 4x the CPU time of LZ4
+     *
+     * @param level Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public static PayloadCodec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+
+    public static PayloadCodec deflate() {
+        return deflate(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * LZ4 block, without frame, fast enough to keep up with any BLE link
+     */
+    public static PayloadCodec lz4() {
+        return new Lz4Codec();
+    }
+
+    /**
+     * First of codecs the peripheral decodes, bit N of the first byte of capabilities set
+     * for codec id N
+     *
+     * @param capabilities value read from the peripheral, may be null
+     * @return null if none of codecs is supported
+     */
+    public static PayloadCodec select(byte[] capabilities, PayloadCodec... codecs) {
+        int supported = capabilities != null && capabilities.length > 0 ? capabilities[0] & 0xFF : 0;
+
+        for (PayloadCodec codec : codecs) {
+            if ((supported & (1 << codec.getId())) != 0) {
+                return codec;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return header byte of payloads of this codec
+     */
+    public abstract int getId();
+
+    /**
+     * @return size of dst encode() needs for length bytes, header not included
+     */
+    public abstract int maxEncodedLength(int length);
+
+    /**
+     * Encode src from its position to its limit, neither is moved
+     *
+     * @param dst at least maxEncodedLength() bytes from offset
+     * @return bytes written
+     */
+    public abstract int encode(ByteBuffer src, byte[] dst, int offset);
+
+    /**
+     * Free native state of the codec, a later encode() sets it up again
+     */
+    public void release() {
+    }
+}
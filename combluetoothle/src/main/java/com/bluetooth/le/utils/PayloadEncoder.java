@@ -0,0 +1,63 @@
+package com.bluetooth.le.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames payloads with a {@link PayloadCodec}, one output array reused between payloads.
+ */
+public class PayloadEncoder {
+    private final PayloadCodec codec;
+    private byte[] buffer;
+    private boolean busy;
+
+    public PayloadEncoder(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Encode data from its position to its limit, neither is moved
+     *
+     * @return framed payload, hand it back with release() once it's sent
+     */
+    public ByteBuffer encode(ByteBuffer data) {
+        int length = data.remaining();
+        byte[] out = acquire(PayloadCodec.HEADER_SIZE + Math.max(length, codec.maxEncodedLength(length)));
+        int encoded = codec.encode(data, out, PayloadCodec.HEADER_SIZE);
+
+        if (encoded < length) {
+            out[0] = (byte) codec.getId();
+        } else {
+            out[0] = PayloadCodec.ID_NONE;
+            data.duplicate().get(out, PayloadCodec.HEADER_SIZE, length);
+            encoded = length;
+        }
+
+        return ByteBuffer.wrap(out, 0, PayloadCodec.HEADER_SIZE + encoded);
+    }
+
+    /**
+     * The array of payload may be reused by the next encode()
+     */
+    public synchronized void release(ByteBuffer payload) {
+        if (payload.array() == buffer) {
+            busy = false;
+        }
+    }
+
+    private synchronized byte[] acquire(int size) {
+        if (busy) {
+            return new byte[size];
+        }
+
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+        }
+
+        busy = true;
+        return buffer;
+    }
+}
@@ -0,0 +1,71 @@
+package com.bluetooth.le.utils;
+
+import android.os.Build;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One timer thread shared by every timeout and delay of the library.
+ * <p>
+ * Tasks must be short and never block, they delay each other.
+ */
+public final class TimeoutScheduler {
+    private static final String THREAD_NAME = "FioT-timeout";
+    private static TimeoutScheduler instance;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public static synchronized TimeoutScheduler getInstance() {
+        if (instance == null) {
+            instance = new TimeoutScheduler();
+        }
+
+        return instance;
+    }
+
+    private TimeoutScheduler() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        /* Drop cancelled timeouts right away instead of when they would have fired */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            executor.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Run task once after delay
+     *
+     * @return handle to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillisec) {
+        return executor.schedule(task, delayMillisec, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run task every period until cancelled
+     *
+     * @return handle to cancel the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelayMillisec, long periodMillisec) {
+        return executor.scheduleAtFixedRate(task, initialDelayMillisec, periodMillisec, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel a task returned by schedule(), null is ignored
+     */
+    public static void cancel(ScheduledFuture<?> task) {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
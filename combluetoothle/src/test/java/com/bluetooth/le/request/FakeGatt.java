@@ -0,0 +1,279 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bluetooth.le.FioTBluetoothLE;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Peripheral behind a RequestHandler: every write succeeds and is recorded, a read returns
+ * the last value written. Callbacks come from one thread of their own, like binder callbacks.
+ * A status characteristic, if set, reads as the bytes received and their CRC32, the format
+ * of VerifyPolicy.checksum(), and a write to it drops the bytes received past its value.
+ * Values of a reliable write are recorded once executed.
+ */
+class FakeGatt {
+    final FioTBluetoothLE le = mock(FioTBluetoothLE.class);
+    final List<byte[]> writes = Collections.synchronizedList(new ArrayList<byte[]>());
+    /* Characteristic of every write started, in order, refused and status writes included */
+    final List<BluetoothGattCharacteristic> targets =
+            Collections.synchronizedList(new ArrayList<BluetoothGattCharacteristic>());
+    /* Reads that reached the peripheral */
+    final AtomicInteger reads = new AtomicInteger();
+
+    private final RequestHandler handler;
+    private final ExecutorService binder = Executors.newSingleThreadExecutor();
+    private volatile byte[] value = new byte[0];
+    private volatile int disconnectAt;
+    private volatile BluetoothGattCharacteristic status;
+    private volatile boolean statusWritable;
+    private volatile int corruptAt;
+    private volatile int failAt;
+    /* Reliable write transaction open, its prepared values */
+    private volatile boolean reliable;
+    private final List<byte[]> prepared = Collections.synchronizedList(new ArrayList<byte[]>());
+    /* Used on the binder thread only */
+    private byte[] received = new byte[0];
+    private int attempts;
+
+    FakeGatt(RequestHandler handler) {
+        this.handler = handler;
+
+        Answer<Boolean> write = new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                onWrite((BluetoothGattCharacteristic) args[0], (byte[]) args[1]);
+                return true;
+            }
+        };
+
+        when(le.writeToCharacteristic(any(BluetoothGattCharacteristic.class), any(byte[].class)))
+                .thenAnswer(write);
+        when(le.writeToCharacteristic(any(BluetoothGattCharacteristic.class), any(byte[].class), anyInt()))
+                .thenAnswer(write);
+        when(le.requestCharacteristicValue(any(BluetoothGattCharacteristic.class)))
+                .thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        onRead((BluetoothGattCharacteristic) invocation.getArguments()[0]);
+                        return true;
+                    }
+                });
+        when(le.beginReliableWrite()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                onBegin();
+                return true;
+            }
+        });
+        when(le.executeReliableWrite()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                onExecute();
+                return true;
+            }
+        });
+        when(le.abortReliableWrite()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                onAbort();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Start dispatching the queued requests
+     */
+    void connect() {
+        handler.impl(le);
+    }
+
+    /**
+     * Drop the link instead of answering write number n, counted from 1 since creation
+     */
+    void disconnectAt(int n) {
+        disconnectAt = n;
+    }
+
+    /**
+     * @param writable false to refuse writes of the status with GATT_WRITE_NOT_PERMITTED
+     */
+    void setStatus(BluetoothGattCharacteristic status, boolean writable) {
+        this.status = status;
+        this.statusWritable = writable;
+    }
+
+    /**
+     * Keep write number n, counted like disconnectAt(), with its first byte flipped
+     */
+    void corruptAt(int n) {
+        corruptAt = n;
+    }
+
+    /**
+     * Refuse write number n, counted like disconnectAt(), with GATT_WRITE_NOT_PERMITTED
+     */
+    void failAt(int n) {
+        failAt = n;
+    }
+
+    /**
+     * @return bytes the peripheral holds, what was written to the status excluded
+     */
+    byte[] received() throws Exception {
+        final byte[][] result = new byte[1][];
+
+        /* Queued after the callbacks of every write so far */
+        binder.submit(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = received.clone();
+            }
+        }).get();
+
+        return result[0];
+    }
+
+    void close() {
+        binder.shutdownNow();
+    }
+
+    private void onWrite(final BluetoothGattCharacteristic characteristic, byte[] data) {
+        final byte[] copy = data.clone();
+        final boolean disconnect = ++attempts == disconnectAt;
+        targets.add(characteristic);
+        final boolean corrupt = attempts == corruptAt;
+        final boolean fail = attempts == failAt;
+        final boolean toStatus = characteristic == status;
+        final boolean prepare = reliable;
+
+        if (!disconnect && !fail && !toStatus) {
+            (prepare ? prepared : writes).add(copy);
+        }
+
+        binder.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (disconnect) {
+                    handler.reset();
+                    return;
+                }
+
+                if (fail) {
+                    handler.onCharacteristicWrite(le, characteristic, BluetoothGatt.GATT_WRITE_NOT_PERMITTED);
+                    return;
+                }
+
+                if (toStatus) {
+                    onStatusWrite(characteristic, copy);
+                    return;
+                }
+
+                if (!prepare) {
+                    store(copy, corrupt);
+                }
+
+                handler.onCharacteristicWrite(le, characteristic, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    /* Called on the binder thread */
+    private void store(byte[] data, boolean corrupt) {
+        value = data;
+        int length = received.length;
+        received = Arrays.copyOf(received, length + data.length);
+        System.arraycopy(data, 0, received, length, data.length);
+
+        if (corrupt && data.length > 0) {
+            received[length] ^= 1;
+        }
+    }
+
+    private void onBegin() {
+        prepared.clear();
+        reliable = true;
+    }
+
+    private void onExecute() {
+        final List<byte[]> committed = new ArrayList<>(prepared);
+        onAbort();
+        writes.addAll(committed);
+
+        binder.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (byte[] data : committed) {
+                    store(data, false);
+                }
+
+                handler.onReliableWriteCompleted(le, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    private void onAbort() {
+        reliable = false;
+        prepared.clear();
+    }
+
+    private void onRead(final BluetoothGattCharacteristic characteristic) {
+        reads.incrementAndGet();
+
+        binder.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] result = characteristic == status ? statusValue() : value;
+                handler.onCharacteristicRead(le, characteristic, result, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    private void onStatusWrite(BluetoothGattCharacteristic characteristic, byte[] data) {
+        if (!statusWritable) {
+            handler.onCharacteristicWrite(le, characteristic, BluetoothGatt.GATT_WRITE_NOT_PERMITTED);
+            return;
+        }
+
+        int keep = 0;
+        for (int i = 3; i >= 0; i--) {
+            keep = (keep << 8) | (data[i] & 0xFF);
+        }
+
+        received = Arrays.copyOf(received, Math.min(keep, received.length));
+        handler.onCharacteristicWrite(le, characteristic, BluetoothGatt.GATT_SUCCESS);
+    }
+
+    private byte[] statusValue() {
+        byte[] result = new byte[8];
+        CRC32 crc32 = new CRC32();
+        crc32.update(received, 0, received.length);
+        long crc = crc32.getValue();
+
+        for (int i = 0; i < 4; i++) {
+            result[i] = (byte) (received.length >>> (8 * i));
+            result[4 + i] = (byte) (crc >>> (8 * i));
+        }
+
+        return result;
+    }
+}
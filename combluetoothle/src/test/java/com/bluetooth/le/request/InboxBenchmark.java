@@ -0,0 +1,99 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Cost of queuing writes into a RequestHandler while 10k are pending, then of dispatching them
+ * to a peripheral mock that answers every write at once. Not a unit test, run main() on a
+ * desktop JVM, optionally with producer count and pending writes as arguments.
+ */
+public class InboxBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int PAYLOAD_SIZE = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int pending = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            run(producers, pending / producers * producers);
+        }
+    }
+
+    private static void run(int producers, int pending) throws InterruptedException {
+        RequestHandler handler = new RequestHandler();
+        FakeGatt gatt = new FakeGatt(handler);
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE, 0);
+
+        /* One future for every write, like the chunks of a large transfer */
+        RequestFuture future = new RequestFuture(RequestCmd.WRITE, pending);
+
+        try {
+            /* Nothing is dispatched before connect(), every write stays pending */
+            long enqueue = enqueue(handler, characteristic, future, producers, pending / producers);
+
+            long begin = System.nanoTime();
+            gatt.connect();
+            future.await();
+            long dispatch = System.nanoTime() - begin;
+
+            if (!future.isSuccess() || gatt.writes.size() != pending) {
+                throw new IllegalStateException("sent " + gatt.writes.size() + " of " + pending);
+            }
+
+            System.out.printf("%d producers, %d pending: enqueue %d ns/op, dispatch %d ns/op%n",
+                    producers, pending, enqueue / pending, dispatch / pending);
+        } finally {
+            gatt.close();
+        }
+    }
+
+    /**
+     * @return nanoseconds to hand every write over to the handler
+     */
+    private static long enqueue(final RequestHandler handler,
+                                final BluetoothGattCharacteristic characteristic,
+                                final RequestFuture future,
+                                int producers,
+                                final int operations) throws InterruptedException {
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+
+                    for (int n = 0; n < operations; n++) {
+                        handler.enqueue(Request.obtain(RequestCmd.WRITE, characteristic, payload, 0,
+                                payload.length, future));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        return System.nanoTime() - begin;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
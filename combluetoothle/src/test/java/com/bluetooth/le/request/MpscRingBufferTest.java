@@ -0,0 +1,102 @@
+package com.bluetooth.le.request;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class MpscRingBufferTest {
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() throws Exception {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(5);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.offer(i));
+        }
+
+        assertTrue(buffer.isFull());
+        assertFalse(buffer.offer(8));
+        assertEquals(8, buffer.size());
+    }
+
+    @Test
+    public void poll_keepsOrderAcrossWrapAround() throws Exception {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4);
+        int next = 0;
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(buffer.offer(i));
+
+            if (i % 3 == 2) {
+                while (!buffer.isEmpty()) {
+                    assertEquals(Integer.valueOf(next++), buffer.poll());
+                }
+            }
+        }
+
+        while (!buffer.isEmpty()) {
+            assertEquals(Integer.valueOf(next++), buffer.poll());
+        }
+
+        assertEquals(100, next);
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void producers_loseNothing() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int n = 0; n < perProducer; n++) {
+                        while (!buffer.offer(id * perProducer + n)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        /* Each producer's elements must come out in the order it offered them */
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        int received = 0;
+        start.countDown();
+
+        while (received < producers * perProducer) {
+            Integer e = buffer.poll();
+
+            if (e == null) {
+                Thread.yield();
+                continue;
+            }
+
+            int id = e / perProducer;
+            assertTrue(e % perProducer > last[id]);
+            last[id] = e % perProducer;
+            received++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(buffer.isEmpty());
+    }
+}
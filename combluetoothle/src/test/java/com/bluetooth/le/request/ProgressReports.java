@@ -0,0 +1,37 @@
+package com.bluetooth.le.request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the progress reports of a transfer. The last one comes after the future of the
+ * transfer completed, last() waits for it.
+ */
+class ProgressReports implements ProgressListener {
+    final List<TransferProgress> reports = Collections.synchronizedList(new ArrayList<TransferProgress>());
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    @Override
+    public void onProgress(TransferProgress progress) {
+        reports.add(progress);
+
+        if (progress.isDone()) {
+            done.countDown();
+        }
+    }
+
+    /**
+     * @return the last report, null if it didn't come within 5 s
+     */
+    TransferProgress last() throws InterruptedException {
+        if (!done.await(5000, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+
+        return reports.get(reports.size() - 1);
+    }
+}
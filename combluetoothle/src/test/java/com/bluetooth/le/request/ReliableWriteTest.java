@@ -0,0 +1,79 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ReliableWriteTest {
+    private RequestHandler handler;
+    private FakeGatt gatt;
+    private BluetoothGattCharacteristic first;
+    private BluetoothGattCharacteristic second;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new RequestHandler();
+        gatt = new FakeGatt(handler);
+        gatt.connect();
+        first = new BluetoothGattCharacteristic(UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_WRITE, 0);
+        second = new BluetoothGattCharacteristic(UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_WRITE, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gatt.close();
+    }
+
+    private RequestFuture send(ReliableWrite reliableWrite) throws InterruptedException {
+        RequestData data = new RequestData();
+        data.setReliableWrite(reliableWrite);
+        Request request = new Request(RequestCmd.RELIABLE_WRITE, data);
+        assertTrue(handler.enqueue(request));
+
+        assertTrue(request.getFuture().await(5000));
+        return request.getFuture();
+    }
+
+    private RequestFuture write(byte[] value) throws InterruptedException {
+        Request request = new Request(RequestCmd.WRITE, new RequestData(first, value));
+        assertTrue(handler.enqueue(request));
+
+        assertTrue(request.getFuture().await(5000));
+        return request.getFuture();
+    }
+
+    @Test
+    public void reliableWrite_commitsEveryValue() throws Exception {
+        ReliableWrite reliableWrite = new ReliableWrite();
+        reliableWrite.add(first, new byte[]{1});
+        reliableWrite.add(second, new byte[]{2, 3});
+
+        assertTrue(send(reliableWrite).isSuccess());
+        assertEquals(2, gatt.writes.size());
+        assertArrayEquals(new byte[]{1}, gatt.writes.get(0));
+        assertArrayEquals(new byte[]{2, 3}, gatt.writes.get(1));
+    }
+
+    @Test
+    public void reliableWrite_failedPrepareCommitsNothing() throws Exception {
+        ReliableWrite reliableWrite = new ReliableWrite();
+        reliableWrite.add(first, new byte[]{1});
+        reliableWrite.add(second, new byte[]{2});
+        gatt.failAt(2);
+
+        assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED, send(reliableWrite).getStatus());
+        assertTrue(gatt.writes.isEmpty());
+
+        /* The transaction is aborted, a plain write goes through again */
+        assertTrue(write(new byte[]{9}).isSuccess());
+        assertEquals(1, gatt.writes.size());
+        assertArrayEquals(new byte[]{9}, gatt.writes.get(0));
+    }
+}
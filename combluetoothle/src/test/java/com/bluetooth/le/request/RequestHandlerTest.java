@@ -0,0 +1,283 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RequestHandlerTest {
+    private RequestHandler handler;
+    private FakeGatt gatt;
+    private BluetoothGattCharacteristic characteristic;
+    private final List<RequestFuture> futures = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new RequestHandler();
+        gatt = new FakeGatt(handler);
+        characteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_READ, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gatt.close();
+    }
+
+    /* Queued before connect(), so the whole set is pending when dispatch starts */
+    private void write(int id, RequestPriority priority) {
+        assertTrue(offer(id, priority));
+    }
+
+    private boolean offer(int id, RequestPriority priority) {
+        return offer(id, priority, null);
+    }
+
+    private boolean offer(int id, RequestPriority priority, Object tag) {
+        Request request = new Request(RequestCmd.WRITE, new RequestData(characteristic, new byte[]{(byte) id}));
+        request.setPriority(priority);
+        request.setTag(tag);
+        futures.add(request.getFuture());
+        return handler.enqueue(request);
+    }
+
+    /* Futures of refused or dropped requests leave the list, the others are checked by sentOrder() */
+    private int statusOf(int index) throws InterruptedException {
+        RequestFuture future = futures.remove(index);
+        assertTrue(future.await(5000));
+        return future.getStatus();
+    }
+
+    private RequestFuture read(boolean bypassCache) {
+        Request request = new Request(RequestCmd.READ, new RequestData(characteristic, null));
+        request.setBypassCache(bypassCache);
+        assertTrue(handler.enqueue(request));
+        return request.getFuture();
+    }
+
+    private static byte[] valueOf(RequestFuture future) throws InterruptedException {
+        assertTrue(future.await(5000));
+        assertTrue(future.isSuccess());
+        return future.getValue();
+    }
+
+    private List<Integer> sentOrder() throws InterruptedException {
+        for (RequestFuture future : futures) {
+            assertTrue(future.await(5000));
+            assertTrue(future.isSuccess());
+        }
+
+        List<Integer> order = new ArrayList<>();
+        synchronized (gatt.writes) {
+            for (byte[] data : gatt.writes) {
+                order.add((int) data[0]);
+            }
+        }
+
+        return order;
+    }
+
+    @Test
+    public void dispatch_higherPriorityFirst() throws Exception {
+        write(1, RequestPriority.BULK);
+        write(2, RequestPriority.INTERACTIVE);
+        write(3, RequestPriority.CONTROL);
+        write(4, RequestPriority.INTERACTIVE);
+        gatt.connect();
+
+        assertEquals(Arrays.asList(3, 2, 4, 1), sentOrder());
+    }
+
+    @Test
+    public void dispatch_bypassedLaneGetsTurn() throws Exception {
+        for (int i = 0; i < 16; i++) {
+            write(i, RequestPriority.INTERACTIVE);
+        }
+
+        write(100, RequestPriority.BULK);
+        write(101, RequestPriority.BULK);
+        gatt.connect();
+
+        /* Bulk goes after MAX_BYPASS interactive requests, not after all of them */
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 8; i++) expected.add(i);
+        expected.add(100);
+        for (int i = 8; i < 16; i++) expected.add(i);
+        expected.add(101);
+
+        assertEquals(expected, sentOrder());
+    }
+
+    @Test
+    public void read_duplicatesShareOneRadioRead() throws Exception {
+        write(7, RequestPriority.INTERACTIVE);
+        RequestFuture first = read(false);
+        RequestFuture second = read(false);
+        gatt.connect();
+
+        assertArrayEquals(new byte[]{7}, valueOf(first));
+        assertArrayEquals(new byte[]{7}, valueOf(second));
+        assertEquals(1, gatt.reads.get());
+    }
+
+    @Test
+    public void read_answeredFromCacheWithinFreshness() throws Exception {
+        handler.setReadFreshness(1000);
+        write(7, RequestPriority.INTERACTIVE);
+        gatt.connect();
+
+        assertArrayEquals(new byte[]{7}, valueOf(read(false)));
+        assertArrayEquals(new byte[]{7}, valueOf(read(false)));
+        assertEquals(1, gatt.reads.get());
+
+        /* A write makes the cached value stale */
+        write(8, RequestPriority.INTERACTIVE);
+        assertArrayEquals(new byte[]{8}, valueOf(read(false)));
+        assertEquals(2, gatt.reads.get());
+    }
+
+    @Test
+    public void read_bypassCacheGoesToRadio() throws Exception {
+        handler.setReadFreshness(1000);
+        write(7, RequestPriority.INTERACTIVE);
+        gatt.connect();
+
+        valueOf(read(false));
+        RequestFuture queued = read(true);
+        RequestFuture joined = read(true);
+
+        valueOf(queued);
+        valueOf(joined);
+        assertEquals(3, gatt.reads.get());
+    }
+
+    @Test
+    public void capacity_failFastRejectsNewRequest() throws Exception {
+        handler.setCapacity(2, 0, OverflowPolicy.FAIL_FAST);
+        write(1, RequestPriority.INTERACTIVE);
+        write(2, RequestPriority.INTERACTIVE);
+
+        assertFalse(offer(3, RequestPriority.INTERACTIVE));
+        assertEquals(RequestFuture.STATUS_REJECTED, statusOf(2));
+
+        gatt.connect();
+        assertEquals(Arrays.asList(1, 2), sentOrder());
+    }
+
+    @Test
+    public void capacity_dropNewestDropsNewRequest() throws Exception {
+        handler.setCapacity(2, 0, OverflowPolicy.DROP_NEWEST);
+        write(1, RequestPriority.INTERACTIVE);
+        write(2, RequestPriority.INTERACTIVE);
+
+        assertFalse(offer(3, RequestPriority.INTERACTIVE));
+        assertEquals(RequestFuture.STATUS_DROPPED, statusOf(2));
+
+        gatt.connect();
+        assertEquals(Arrays.asList(1, 2), sentOrder());
+    }
+
+    @Test
+    public void capacity_dropOldestMakesRoom() throws Exception {
+        handler.setCapacity(2, 0, OverflowPolicy.DROP_OLDEST);
+        write(1, RequestPriority.INTERACTIVE);
+        write(2, RequestPriority.INTERACTIVE);
+        write(3, RequestPriority.INTERACTIVE);
+
+        assertEquals(RequestFuture.STATUS_DROPPED, statusOf(0));
+
+        gatt.connect();
+        assertEquals(Arrays.asList(2, 3), sentOrder());
+    }
+
+    @Test
+    public void capacity_blockWaitsForRoom() throws Exception {
+        handler.setCapacity(1, 0, OverflowPolicy.BLOCK);
+        write(1, RequestPriority.INTERACTIVE);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(2, RequestPriority.INTERACTIVE);
+            }
+        });
+        producer.start();
+
+        /* Still waiting, nothing is sent before connect() */
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        gatt.connect();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(Arrays.asList(1, 2), sentOrder());
+    }
+
+    @Test
+    public void coalesce_queuedWritesShareAPacket() throws Exception {
+        handler.setWriteCoalescing(true);
+        handler.setMaxWritePayload(4);
+
+        for (int i = 1; i <= 5; i++) {
+            write(i, RequestPriority.INTERACTIVE);
+        }
+
+        /* A write of another lane is never joined */
+        write(6, RequestPriority.BULK);
+        gatt.connect();
+
+        assertEquals(Arrays.asList(1, 5, 6), sentOrder());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, gatt.writes.get(0));
+        assertArrayEquals(new byte[]{5}, gatt.writes.get(1));
+    }
+
+    @Test
+    public void cancel_futureOfQueuedRequest() throws Exception {
+        write(1, RequestPriority.INTERACTIVE);
+        write(2, RequestPriority.INTERACTIVE);
+        write(3, RequestPriority.INTERACTIVE);
+
+        assertTrue(futures.get(1).cancel());
+        assertEquals(RequestFuture.STATUS_CANCELLED, statusOf(1));
+
+        gatt.connect();
+        assertEquals(Arrays.asList(1, 3), sentOrder());
+    }
+
+    @Test
+    public void cancel_byTag() throws Exception {
+        assertTrue(offer(1, RequestPriority.INTERACTIVE, "a"));
+        assertTrue(offer(2, RequestPriority.BULK, "b"));
+        assertTrue(offer(3, RequestPriority.BULK, "a"));
+
+        handler.cancel("a");
+        assertEquals(RequestFuture.STATUS_CANCELLED, statusOf(2));
+        assertEquals(RequestFuture.STATUS_CANCELLED, statusOf(0));
+
+        gatt.connect();
+        assertEquals(Arrays.asList(2), sentOrder());
+    }
+
+    @Test
+    public void cancel_byCharacteristic() throws Exception {
+        write(1, RequestPriority.INTERACTIVE);
+        write(2, RequestPriority.BULK);
+        handler.cancel(characteristic);
+
+        assertEquals(RequestFuture.STATUS_CANCELLED, statusOf(1));
+        assertEquals(RequestFuture.STATUS_CANCELLED, statusOf(0));
+
+        /* Only what was queued before is cancelled */
+        write(3, RequestPriority.INTERACTIVE);
+        gatt.connect();
+        assertEquals(Arrays.asList(3), sentOrder());
+    }
+}
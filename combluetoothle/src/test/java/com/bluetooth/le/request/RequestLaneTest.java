@@ -0,0 +1,97 @@
+package com.bluetooth.le.request;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RequestLaneTest {
+    private long sequence;
+
+    private Request request(long deadline) {
+        Request request = new Request(RequestCmd.WRITE, new RequestData());
+        request.setDeadline(deadline);
+        request.setSequence(sequence++);
+        return request;
+    }
+
+    @Test
+    public void poll_earliestDeadlineFirst() throws Exception {
+        RequestLane lane = new RequestLane();
+        Request late = request(300);
+        Request early = request(100);
+        Request middle = request(200);
+
+        lane.add(late);
+        lane.add(early);
+        lane.add(middle);
+
+        assertSame(early, lane.poll());
+        assertSame(middle, lane.poll());
+        assertSame(late, lane.poll());
+        assertTrue(lane.isEmpty());
+    }
+
+    @Test
+    public void poll_timedBeforeUntimed() throws Exception {
+        RequestLane lane = new RequestLane();
+        Request first = request(0);
+        Request second = request(0);
+        Request timed = request(500);
+
+        lane.add(first);
+        lane.add(second);
+        lane.add(timed);
+
+        assertSame(timed, lane.peek());
+        assertSame(timed, lane.poll());
+        assertSame(first, lane.poll());
+        assertSame(second, lane.poll());
+        assertNull(lane.poll());
+    }
+
+    @Test
+    public void poll_sameDeadlineKeepsArrivalOrder() throws Exception {
+        RequestLane lane = new RequestLane();
+        Request[] chunks = new Request[10];
+
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = request(1000);
+        }
+
+        /* Heap order must not leak into the result */
+        for (int i = chunks.length - 1; i >= 0; i--) {
+            lane.add(chunks[i]);
+        }
+
+        for (Request chunk : chunks) {
+            assertSame(chunk, lane.poll());
+        }
+    }
+
+    @Test
+    public void addFirst_goesBeforeQueuedRequests() throws Exception {
+        RequestLane lane = new RequestLane();
+        Request queued = request(0);
+        Request retried = request(0);
+
+        lane.add(queued);
+        lane.addFirst(retried);
+
+        assertSame(retried, lane.poll());
+        assertSame(queued, lane.poll());
+    }
+
+    @Test
+    public void oldest_comparesHeadsBySequence() throws Exception {
+        RequestLane lane = new RequestLane();
+        Request untimed = request(0);
+        Request timed = request(100);
+
+        lane.add(untimed);
+        lane.add(timed);
+
+        assertSame(untimed, lane.oldest());
+        assertTrue(lane.remove(untimed));
+        assertSame(timed, lane.oldest());
+    }
+}
@@ -0,0 +1,63 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+    @Test
+    public void delay_doublesUpToMax() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 20, 500);
+        long[] backoff = {20, 40, 80, 160, 320, 500, 500};
+
+        for (int retry = 1; retry <= backoff.length; retry++) {
+            /* Jitter keeps the delay between half and all of the backoff */
+            for (int n = 0; n < 100; n++) {
+                long delay = policy.getDelayMillisec(retry);
+                assertTrue("retry " + retry + ": " + delay, delay >= backoff[retry - 1] / 2);
+                assertTrue("retry " + retry + ": " + delay, delay <= backoff[retry - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void delay_isJittered() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 400, 400);
+        long first = policy.getDelayMillisec(1);
+        boolean differs = false;
+
+        for (int n = 0; n < 100 && !differs; n++) {
+            differs = policy.getDelayMillisec(1) != first;
+        }
+
+        assertTrue(differs);
+    }
+
+    @Test
+    public void delay_maxBelowBaseUsesBase() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 100, 10);
+
+        for (int retry = 1; retry < 5; retry++) {
+            assertTrue(policy.getDelayMillisec(retry) <= 100);
+            assertTrue(policy.getDelayMillisec(retry) >= 50);
+        }
+    }
+
+    @Test
+    public void delay_noneIsZero() throws Exception {
+        assertEquals(0, RetryPolicy.NONE.getMaxRetries());
+        assertEquals(0, RetryPolicy.NONE.getDelayMillisec(1));
+    }
+
+    @Test
+    public void isTransient_onlyStackFailures() throws Exception {
+        assertTrue(RetryPolicy.isTransient(RetryPolicy.GATT_BUSY));
+        assertTrue(RetryPolicy.isTransient(RetryPolicy.GATT_ERROR));
+        assertTrue(RetryPolicy.isTransient(BluetoothGatt.GATT_FAILURE));
+        assertFalse(RetryPolicy.isTransient(BluetoothGatt.GATT_SUCCESS));
+        assertFalse(RetryPolicy.isTransient(BluetoothGatt.GATT_WRITE_NOT_PERMITTED));
+        assertFalse(RetryPolicy.isTransient(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH));
+    }
+}
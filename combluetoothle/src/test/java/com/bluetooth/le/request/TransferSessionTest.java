@@ -0,0 +1,111 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferSessionTest {
+    private static final int CHUNK_SIZE = 20;
+
+    private RequestHandler handler;
+    private FakeGatt gatt;
+    private BluetoothGattCharacteristic characteristic;
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new RequestHandler();
+        gatt = new FakeGatt(handler);
+        gatt.connect();
+        characteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_READ, 0);
+
+        file = File.createTempFile("transfer", ".checkpoint");
+        assertTrue(file.delete());
+
+        data = new byte[2000];
+        new Random(3).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gatt.close();
+        file.delete();
+    }
+
+    /**
+     * Run session until its write completes, checkpoint handling included
+     */
+    private RequestFuture transfer(TransferSession session) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        RequestFuture future = session.start(new VerifiedWrite(handler, characteristic, ByteBuffer.wrap(data), CHUNK_SIZE), null);
+
+        /* Runs after the callback of the session */
+        future.addCallback(new RequestFuture.Callback() {
+            @Override
+            public void onComplete(RequestFuture future) {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5000, TimeUnit.MILLISECONDS));
+        return future;
+    }
+
+    @Test
+    public void start_withoutCheckpointFromZero() throws Exception {
+        TransferSession session = new TransferSession(file, ByteBuffer.wrap(data));
+
+        assertEquals(0, session.getResumeOffset());
+        assertTrue(transfer(session).isSuccess());
+        assertEquals(data.length, session.getVerifiedOffset());
+        assertFalse(file.exists());
+        assertEquals(data.length / CHUNK_SIZE, gatt.writes.size());
+    }
+
+    @Test
+    public void start_resumesAfterDisconnect() throws Exception {
+        gatt.disconnectAt(31);
+        TransferSession first = new TransferSession(file, ByteBuffer.wrap(data));
+
+        assertFalse(transfer(first).isSuccess());
+        assertEquals(30 * CHUNK_SIZE, first.getVerifiedOffset());
+        assertTrue(file.exists());
+
+        gatt.connect();
+        gatt.writes.clear();
+        TransferSession second = new TransferSession(file, ByteBuffer.wrap(data));
+
+        assertEquals(30 * CHUNK_SIZE, second.getResumeOffset());
+        assertTrue(transfer(second).isSuccess());
+        assertEquals(data.length, second.getVerifiedOffset());
+        assertFalse(file.exists());
+
+        /* Only the chunks after the checkpoint are sent again */
+        assertEquals((data.length - 30 * CHUNK_SIZE) / CHUNK_SIZE, gatt.writes.size());
+        assertEquals(data[30 * CHUNK_SIZE], gatt.writes.get(0)[0]);
+    }
+
+    @Test
+    public void checkpoint_ofOtherDataIsIgnored() throws Exception {
+        gatt.disconnectAt(11);
+        assertFalse(transfer(new TransferSession(file, ByteBuffer.wrap(data))).isSuccess());
+        assertTrue(file.exists());
+
+        data[0]++;
+
+        assertEquals(0, new TransferSession(file, ByteBuffer.wrap(data)).getResumeOffset());
+    }
+}
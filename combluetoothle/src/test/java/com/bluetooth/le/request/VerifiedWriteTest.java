@@ -0,0 +1,122 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class VerifiedWriteTest {
+    private static final int CHUNK_SIZE = 20;
+
+    private RequestHandler handler;
+    private FakeGatt gatt;
+    private BluetoothGattCharacteristic characteristic;
+    private BluetoothGattCharacteristic status;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new RequestHandler();
+        gatt = new FakeGatt(handler);
+        gatt.connect();
+        characteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_READ, 0);
+        status = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE, 0);
+        gatt.setStatus(status, true);
+
+        data = new byte[2000];
+        new Random(4).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gatt.close();
+    }
+
+    private RequestFuture transfer(VerifyPolicy policy) throws InterruptedException {
+        VerifiedWrite write = new VerifiedWrite(handler, characteristic, ByteBuffer.wrap(data), CHUNK_SIZE);
+        write.setPolicy(policy);
+        write.setReadBack(3, 0);
+
+        RequestFuture future = write.start();
+        assertTrue(future.await(5000));
+        return future;
+    }
+
+    private VerifyPolicy checksum(int everyChunks) {
+        return VerifyPolicy.checksum(status, VerifyPolicy.ChecksumType.CRC32, everyChunks);
+    }
+
+    @Test
+    public void readBack_everyFewChunks() throws Exception {
+        assertTrue(transfer(VerifyPolicy.readBack(5)).isSuccess());
+
+        assertEquals(data.length / CHUNK_SIZE / 5, gatt.reads.get());
+        assertArrayEquals(data, gatt.received());
+    }
+
+    @Test
+    public void checksum_readsStatusDespiteReadCache() throws Exception {
+        handler.setReadFreshness(1000);
+
+        assertTrue(transfer(checksum(10)).isSuccess());
+        assertEquals(data.length / CHUNK_SIZE / 10, gatt.reads.get());
+        assertArrayEquals(data, gatt.received());
+    }
+
+    @Test
+    public void checksum_corruptedRangeIsSentAgain() throws Exception {
+        gatt.corruptAt(15);
+
+        assertTrue(transfer(checksum(10)).isSuccess());
+        assertArrayEquals(data, gatt.received());
+
+        /* Chunks 10 to 19, since the last good check, right after the check of chunk 19 */
+        assertEquals(data.length / CHUNK_SIZE + 10, gatt.writes.size());
+        assertEquals(data[10 * CHUNK_SIZE], gatt.writes.get(20)[0]);
+    }
+
+    @Test
+    public void checksum_atEndOnlyCorruptionSendsAllAgain() throws Exception {
+        gatt.corruptAt(50);
+
+        assertTrue(transfer(checksum(0)).isSuccess());
+        assertArrayEquals(data, gatt.received());
+        assertEquals(2 * data.length / CHUNK_SIZE, gatt.writes.size());
+    }
+
+    @Test
+    public void checksum_refusedStatusWriteFails() throws Exception {
+        gatt.setStatus(status, false);
+        gatt.corruptAt(15);
+
+        assertEquals(RequestFuture.STATUS_VERIFY_FAILED, transfer(checksum(10)).getStatus());
+    }
+
+    @Test
+    public void progress_countsChunksSentAgain() throws Exception {
+        ProgressReports reports = new ProgressReports();
+        VerifiedWrite write = new VerifiedWrite(handler, characteristic, ByteBuffer.wrap(data), CHUNK_SIZE);
+        write.setPolicy(checksum(10));
+        write.setReadBack(3, 0);
+        write.setProgressListener(reports, 0);
+        gatt.corruptAt(15);
+
+        RequestFuture future = write.start();
+        assertTrue(future.await(5000));
+        assertTrue(future.isSuccess());
+
+        TransferProgress last = reports.last();
+        assertEquals(data.length, last.getBytesAcknowledged());
+        assertEquals(data.length, last.getTotalBytes());
+        assertEquals(10, last.getRetransmissions());
+    }
+}
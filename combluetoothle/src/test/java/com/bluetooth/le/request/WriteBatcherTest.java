@@ -0,0 +1,113 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class WriteBatcherTest {
+    private static final int MAX_PAYLOAD = 20;
+
+    private RequestHandler handler;
+    private FakeGatt gatt;
+    private BluetoothGattCharacteristic characteristic;
+    private WriteBatcher batcher;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new RequestHandler();
+        gatt = new FakeGatt(handler);
+        gatt.connect();
+        characteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+        batcher = new WriteBatcher(handler, characteristic, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gatt.close();
+    }
+
+    @Test
+    public void write_smallWritesShareOnePacket() throws Exception {
+        /* Window long enough that only flush() sends the batch */
+        WriteBatcher manual = new WriteBatcher(handler, characteristic, 10000);
+        RequestFuture first = manual.write(RequestCmd.WRITE_NO_RESPONSE, new byte[]{1, 2}, RequestPriority.INTERACTIVE, MAX_PAYLOAD);
+        RequestFuture second = manual.write(RequestCmd.WRITE_NO_RESPONSE, new byte[]{3}, RequestPriority.INTERACTIVE, MAX_PAYLOAD);
+        manual.flush();
+
+        assertSame(first, second);
+        assertTrue(first.await(5000));
+        assertTrue(first.isSuccess());
+        assertEquals(1, gatt.writes.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, gatt.writes.get(0));
+    }
+
+    @Test
+    public void write_keepsOrderOfMixedSizes() throws Exception {
+        Random random = new Random(1);
+        List<RequestFuture> futures = new ArrayList<>();
+        int sequence = 0;
+
+        /* Small writes batch, empty and oversize ones go through as their own packets */
+        for (int i = 0; i < 400; i++) {
+            int length = random.nextInt(10) == 0 ? 25 + random.nextInt(30) : 1 + random.nextInt(4);
+            if (random.nextInt(50) == 0) {
+                length = 0;
+            }
+
+            byte[] data = new byte[length];
+            for (int j = 0; j < length; j++) {
+                data[j] = (byte) sequence++;
+            }
+
+            futures.add(batcher.write(RequestCmd.WRITE_NO_RESPONSE, data, RequestPriority.INTERACTIVE, MAX_PAYLOAD));
+
+            if (random.nextInt(5) == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        batcher.flush();
+
+        for (RequestFuture future : futures) {
+            assertTrue(future.await(5000));
+            assertTrue(future.isSuccess());
+        }
+
+        int received = 0;
+        synchronized (gatt.writes) {
+            for (byte[] packet : gatt.writes) {
+                assertTrue(packet.length <= MAX_PAYLOAD);
+
+                for (byte b : packet) {
+                    assertEquals((byte) received++, b);
+                }
+            }
+        }
+
+        assertEquals(sequence, received);
+    }
+
+    @Test
+    public void write_otherPriorityClosesBatch() throws Exception {
+        RequestFuture interactive = batcher.write(RequestCmd.WRITE_NO_RESPONSE, new byte[]{1}, RequestPriority.INTERACTIVE, MAX_PAYLOAD);
+        RequestFuture bulk = batcher.write(RequestCmd.WRITE_NO_RESPONSE, new byte[]{2}, RequestPriority.BULK, MAX_PAYLOAD);
+        batcher.flush();
+
+        assertNotSame(interactive, bulk);
+        assertTrue(bulk.await(5000));
+        assertTrue(interactive.await(5000));
+        assertEquals(2, gatt.writes.size());
+        assertEquals(1, gatt.writes.get(0)[0]);
+        assertEquals(2, gatt.writes.get(1)[0]);
+    }
+}
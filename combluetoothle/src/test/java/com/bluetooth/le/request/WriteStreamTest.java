@@ -0,0 +1,131 @@
+package com.bluetooth.le.request;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class WriteStreamTest {
+    private static final int CHUNK_SIZE = 20;
+
+    private RequestHandler handler;
+    private FakeGatt gatt;
+    private BluetoothGattCharacteristic characteristic;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new RequestHandler();
+        gatt = new FakeGatt(handler);
+        gatt.connect();
+        characteristic = newCharacteristic();
+
+        data = new byte[1010];
+        new Random(6).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gatt.close();
+    }
+
+    private static BluetoothGattCharacteristic newCharacteristic() {
+        return new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+    }
+
+    private static void assertDone(WriteStream stream) throws InterruptedException {
+        assertTrue(stream.getFuture().await(5000));
+        assertTrue(stream.getFuture().isSuccess());
+    }
+
+    @Test
+    public void stream_sendsEveryChunkInOrder() throws Exception {
+        WriteStream stream = new WriteStream(handler, characteristic, ByteBuffer.wrap(data), CHUNK_SIZE);
+        stream.setWindow(2);
+        stream.start();
+
+        assertDone(stream);
+        assertEquals(data.length, stream.getBytesSent());
+        assertEquals((data.length + CHUNK_SIZE - 1) / CHUNK_SIZE, gatt.writes.size());
+        assertEquals(CHUNK_SIZE, gatt.writes.get(0).length);
+        assertArrayEquals(data, gatt.received());
+    }
+
+    @Test
+    public void stream_readsSourceAsItMoves() throws Exception {
+        WriteStream stream = new WriteStream(handler, characteristic,
+                ChunkSources.of(new ByteArrayInputStream(data)), CHUNK_SIZE);
+        stream.start();
+
+        assertDone(stream);
+        assertEquals(data.length, stream.getBytesSent());
+        assertArrayEquals(data, gatt.received());
+    }
+
+    @Test
+    public void stream_emptyMakesOneEmptyWrite() throws Exception {
+        WriteStream stream = new WriteStream(handler, characteristic, ByteBuffer.allocate(0), CHUNK_SIZE);
+        stream.start();
+
+        assertDone(stream);
+        assertEquals(1, gatt.writes.size());
+        assertEquals(0, gatt.writes.get(0).length);
+    }
+
+    @Test
+    public void striped_dealsNumberedChunksRoundRobin() throws Exception {
+        BluetoothGattCharacteristic[] pipes = {newCharacteristic(), newCharacteristic(), newCharacteristic()};
+        WriteStream stream = new WriteStream(handler, pipes, ByteBuffer.wrap(data), CHUNK_SIZE);
+        stream.start();
+
+        assertDone(stream);
+        assertEquals(data.length, stream.getBytesSent());
+
+        int payload = CHUNK_SIZE - WriteStream.SEQUENCE_HEADER_SIZE;
+        int chunks = (data.length + payload - 1) / payload;
+        assertEquals(chunks, gatt.writes.size());
+
+        ByteBuffer reassembled = ByteBuffer.allocate(data.length);
+        for (int i = 0; i < chunks; i++) {
+            byte[] chunk = gatt.writes.get(i);
+
+            assertSame(pipes[i % pipes.length], gatt.targets.get(i));
+            assertEquals(i, (chunk[0] & 0xFF) | (chunk[1] & 0xFF) << 8);
+            reassembled.put(chunk, WriteStream.SEQUENCE_HEADER_SIZE, chunk.length - WriteStream.SEQUENCE_HEADER_SIZE);
+        }
+
+        assertArrayEquals(data, reassembled.array());
+    }
+
+    @Test
+    public void progress_everyChunkThenDone() throws Exception {
+        ProgressReports reports = new ProgressReports();
+        WriteStream stream = new WriteStream(handler, characteristic, ByteBuffer.wrap(data), CHUNK_SIZE);
+        stream.setProgressListener(reports, 0);
+        stream.start();
+
+        assertDone(stream);
+        TransferProgress last = reports.last();
+
+        assertEquals(data.length, last.getBytesAcknowledged());
+        assertEquals(data.length, last.getTotalBytes());
+        assertEquals(0, last.getRetransmissions());
+        assertEquals(gatt.writes.size() + 1, reports.reports.size());
+
+        long bytes = 0;
+        for (TransferProgress progress : reports.reports.subList(0, reports.reports.size() - 1)) {
+            assertFalse(progress.isDone());
+            assertTrue(progress.getBytesAcknowledged() > bytes);
+            bytes = progress.getBytesAcknowledged();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.bluetooth.le.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferChunkerTest {
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+
+        return data;
+    }
+
+    @Test
+    public void next_coversSourceWithShortLastChunk() throws Exception {
+        byte[] data = data(50);
+        ByteBufferChunker chunker = new ByteBufferChunker(ByteBuffer.wrap(data), 20);
+        int[] sizes = {20, 20, 10};
+
+        for (int i = 0; i < sizes.length; i++) {
+            assertTrue(chunker.hasNext());
+            ByteBuffer chunk = chunker.next();
+            assertEquals(sizes[i], chunk.remaining());
+            assertEquals(data[i * 20], chunk.get(chunk.position()));
+        }
+
+        assertFalse(chunker.hasNext());
+        assertEquals(0, chunker.remaining());
+        assertEquals(50, chunker.getBytesConsumed());
+    }
+
+    @Test
+    public void next_reusesOneView() throws Exception {
+        ByteBufferChunker chunker = new ByteBufferChunker(ByteBuffer.wrap(data(40)), 20);
+
+        assertSame(chunker.next(), chunker.next());
+    }
+
+    @Test
+    public void chunker_leavesSourceAlone() throws Exception {
+        ByteBuffer source = ByteBuffer.wrap(data(100));
+        source.position(10).limit(60);
+        ByteBufferChunker chunker = new ByteBufferChunker(source, 16);
+        int total = 0;
+
+        while (chunker.hasNext()) {
+            total += chunker.next().remaining();
+        }
+
+        assertEquals(50, total);
+        assertEquals(10, source.position());
+        assertEquals(60, source.limit());
+    }
+
+    @Test
+    public void nextArray_reusesScratchOfSameLength() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(30);
+        direct.put(data(30)).flip();
+        ByteBufferChunker chunker = new ByteBufferChunker(direct, 12);
+
+        byte[] first = chunker.nextArray(null);
+        byte[] second = chunker.nextArray(first);
+        byte[] last = chunker.nextArray(second);
+
+        assertSame(first, second);
+        assertNotSame(second, last);
+        assertArrayEquals(Arrays.copyOfRange(data(30), 12, 24), second);
+        assertArrayEquals(Arrays.copyOfRange(data(30), 24, 30), last);
+    }
+
+    @Test
+    public void seek_andRewind() throws Exception {
+        ByteBufferChunker chunker = new ByteBufferChunker(ByteBuffer.wrap(data(100)), 20);
+
+        chunker.seek(45);
+        assertEquals(55, chunker.remaining());
+        assertEquals(45, chunker.next().get());
+
+        chunker.seek(1000);
+        assertFalse(chunker.hasNext());
+
+        chunker.rewind();
+        assertEquals(0, chunker.getBytesConsumed());
+        assertEquals(0, chunker.next().get());
+    }
+}
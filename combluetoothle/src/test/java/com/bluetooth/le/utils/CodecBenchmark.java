@@ -0,0 +1,94 @@
+package com.bluetooth.le.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Whether compressing a bulk write pays off: ratio and encode speed of each codec, and the
+ * throughput left once encoding time is added to the time on air of what it saved. Not a unit
+ * test, run main() on a desktop JVM, optionally with the link rate in kB/s and the payload
+ * size as arguments. Phones encode several times slower than a desktop.
+ */
+public class CodecBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        double linkRate = (args.length > 0 ? Double.parseDouble(args[0]) : 100) * 1000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 256 * 1024;
+
+        byte[][] data = {text(size), firmware(size), random(size)};
+        String[] names = {"text", "firmware", "random"};
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < data.length; i++) {
+                run("lz4", PayloadCodec.lz4(), names[i], data[i], linkRate);
+                run("deflate", PayloadCodec.deflate(), names[i], data[i], linkRate);
+            }
+        }
+    }
+
+    private static void run(String codecName, PayloadCodec codec, String dataName, byte[] data, double linkRate) {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        byte[] dst = new byte[codec.maxEncodedLength(data.length)];
+        int encoded = 0;
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoded = codec.encode(src, dst, 0);
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9 / ITERATIONS;
+        codec.release();
+
+        /* PayloadEncoder sends data as is when it doesn't shrink */
+        int sent = Math.min(encoded, data.length);
+        double plain = data.length / linkRate;
+        double compressed = seconds + sent / linkRate;
+
+        System.out.printf("%-7s %-8s ratio %.2f, encode %.1f MB/s, %.1f ms CPU, net throughput x%.2f%n",
+                codecName, dataName, (double) data.length / sent, data.length / seconds / 1e6,
+                seconds * 1000, plain / compressed);
+    }
+
+    /* Telemetry-like records, very repetitive */
+    private static byte[] text(int size) throws Exception {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(1);
+
+        while (text.length() < size) {
+            text.append("{\"sensor\":").append(random.nextInt(8))
+                    .append(",\"temperature\":").append(20 + random.nextInt(10))
+                    .append(",\"humidity\":").append(40 + random.nextInt(30)).append("}\n");
+        }
+
+        return text.substring(0, size).getBytes("US-ASCII");
+    }
+
+    /* Code-like: short repeated words with random operands, and zero padding */
+    private static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        byte[][] words = new byte[64][4];
+        Random random = new Random(2);
+
+        for (byte[] word : words) {
+            random.nextBytes(word);
+        }
+
+        for (int i = 0; i + 4 <= size * 7 / 8; i += 4) {
+            byte[] word = words[random.nextInt(words.length)];
+            System.arraycopy(word, 0, data, i, 4);
+
+            if (random.nextInt(3) == 0) {
+                data[i + random.nextInt(4)] = (byte) random.nextInt();
+            }
+        }
+
+        return data;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+}
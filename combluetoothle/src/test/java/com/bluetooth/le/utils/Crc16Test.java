@@ -0,0 +1,43 @@
+package com.bluetooth.le.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class Crc16Test {
+    private static final byte[] CHECK_INPUT = "123456789".getBytes(Charset.forName("US-ASCII"));
+
+    @Test
+    public void value_matchesCcittFalseCheck() throws Exception {
+        Crc16 crc = new Crc16();
+
+        crc.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+        assertEquals(0x29B1, crc.getValue());
+    }
+
+    @Test
+    public void update_byteByByteMatchesBlock() throws Exception {
+        Crc16 block = new Crc16();
+        Crc16 single = new Crc16();
+
+        block.update(CHECK_INPUT, 2, 5);
+
+        for (int i = 2; i < 7; i++) {
+            single.update(CHECK_INPUT[i]);
+        }
+
+        assertEquals(block.getValue(), single.getValue());
+    }
+
+    @Test
+    public void reset_startsOver() throws Exception {
+        Crc16 crc = new Crc16();
+
+        assertEquals(0xFFFF, crc.getValue());
+        crc.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+        crc.reset();
+        assertEquals(0xFFFF, crc.getValue());
+    }
+}
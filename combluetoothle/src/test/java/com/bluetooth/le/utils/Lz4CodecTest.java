@@ -0,0 +1,141 @@
+package com.bluetooth.le.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Lz4CodecTest {
+    /**
+     * Plain LZ4 block decoder written from the format description, independent of the encoder
+     */
+    private static byte[] decode(byte[] src, int offset, int length, int decodedLength) {
+        byte[] dst = new byte[decodedLength];
+        int in = offset;
+        int end = offset + length;
+        int out = 0;
+
+        while (true) {
+            int token = src[in++] & 0xFF;
+            int literals = token >>> 4;
+
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[in++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+
+            System.arraycopy(src, in, dst, out, literals);
+            in += literals;
+            out += literals;
+
+            /* The last sequence has literals only */
+            if (in == end) {
+                break;
+            }
+
+            int matchOffset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+            in += 2;
+            assertTrue("offset " + matchOffset + " at " + out, matchOffset > 0 && matchOffset <= out);
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[in++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += 4;
+
+            /* Byte by byte, a match may overlap its own output */
+            for (int i = 0; i < matchLength; i++) {
+                dst[out] = dst[out - matchOffset];
+                out++;
+            }
+        }
+
+        assertEquals(decodedLength, out);
+        return dst;
+    }
+
+    private static void assertRoundTrip(byte[] data) {
+        PayloadCodec codec = PayloadCodec.lz4();
+        byte[] encoded = new byte[3 + codec.maxEncodedLength(data.length)];
+        int length = codec.encode(ByteBuffer.wrap(data), encoded, 3);
+
+        assertTrue(length <= codec.maxEncodedLength(data.length));
+        assertArrayEquals(data, decode(encoded, 3, length, data.length));
+    }
+
+    @Test
+    public void roundTrip_shortInputsAreLiterals() throws Exception {
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip(new byte[]{1});
+        assertRoundTrip("twelve bytes".getBytes("US-ASCII"));
+        assertRoundTrip("thirteen byte".getBytes("US-ASCII"));
+    }
+
+    @Test
+    public void roundTrip_text() throws Exception {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < 200; i++) {
+            text.append("sensor ").append(i % 7).append(" temperature ").append(20 + i % 5).append(";");
+        }
+
+        byte[] data = text.toString().getBytes("US-ASCII");
+        PayloadCodec codec = PayloadCodec.lz4();
+        byte[] encoded = new byte[codec.maxEncodedLength(data.length)];
+        int length = codec.encode(ByteBuffer.wrap(data), encoded, 0);
+
+        assertTrue(length < data.length / 2);
+        assertArrayEquals(data, decode(encoded, 0, length, data.length));
+    }
+
+    @Test
+    public void roundTrip_longRunsAndLongLiterals() throws Exception {
+        byte[] data = new byte[5000];
+        Random random = new Random(1);
+
+        /* Random literals longer than 15 and 270 bytes, then runs longer than 15 and 270 */
+        random.nextBytes(data);
+        Arrays.fill(data, 300, 320, (byte) 7);
+        Arrays.fill(data, 1000, 3000, (byte) 9);
+
+        assertRoundTrip(data);
+    }
+
+    @Test
+    public void roundTrip_incompressible() throws Exception {
+        byte[] data = new byte[4096];
+        new Random(2).nextBytes(data);
+
+        assertRoundTrip(data);
+    }
+
+    @Test
+    public void encode_directBufferFromPosition() throws Exception {
+        byte[] data = new byte[3000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 100);
+        }
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+        direct.position(10);
+        direct.put(data);
+        direct.position(10);
+
+        PayloadCodec codec = PayloadCodec.lz4();
+        byte[] encoded = new byte[codec.maxEncodedLength(data.length)];
+        int length = codec.encode(direct, encoded, 0);
+
+        assertEquals(10, direct.position());
+        assertArrayEquals(data, decode(encoded, 0, length, data.length));
+    }
+}
@@ -0,0 +1,98 @@
+package com.bluetooth.le.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class PayloadCodecTest {
+    private static final PayloadCodec LZ4 = PayloadCodec.lz4();
+    private static final PayloadCodec DEFLATE = PayloadCodec.deflate();
+
+    private static byte[] capabilities(int... ids) {
+        int mask = 0;
+        for (int id : ids) {
+            mask |= 1 << id;
+        }
+
+        return new byte[]{(byte) mask};
+    }
+
+    private static byte[] text() throws Exception {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < 200; i++) {
+            text.append("sensor ").append(i % 7).append(" humidity ").append(40 + i % 9).append(";");
+        }
+
+        return text.toString().getBytes("US-ASCII");
+    }
+
+    private static byte[] inflate(byte[] src, int offset, int length, int decodedLength) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(src, offset, length);
+
+        byte[] dst = new byte[decodedLength];
+        assertEquals(decodedLength, inflater.inflate(dst));
+        assertTrue(inflater.finished());
+        inflater.end();
+        return dst;
+    }
+
+    @Test
+    public void select_firstSupportedInPreferenceOrder() throws Exception {
+        byte[] both = capabilities(PayloadCodec.ID_LZ4, PayloadCodec.ID_DEFLATE);
+
+        assertSame(LZ4, PayloadCodec.select(both, LZ4, DEFLATE));
+        assertSame(DEFLATE, PayloadCodec.select(both, DEFLATE, LZ4));
+        assertSame(DEFLATE, PayloadCodec.select(capabilities(PayloadCodec.ID_DEFLATE), LZ4, DEFLATE));
+    }
+
+    @Test
+    public void select_noneWithoutCapabilities() throws Exception {
+        assertNull(PayloadCodec.select(null, LZ4, DEFLATE));
+        assertNull(PayloadCodec.select(new byte[0], LZ4, DEFLATE));
+        assertNull(PayloadCodec.select(capabilities(), LZ4, DEFLATE));
+        assertNull(PayloadCodec.select(capabilities(PayloadCodec.ID_LZ4)));
+    }
+
+    @Test
+    public void encoder_framesCompressedPayload() throws Exception {
+        byte[] data = text();
+        ByteBuffer payload = new PayloadEncoder(PayloadCodec.deflate()).encode(ByteBuffer.wrap(data));
+
+        assertEquals(PayloadCodec.ID_DEFLATE, payload.get(0));
+        assertTrue(payload.remaining() < data.length / 2);
+        assertArrayEquals(data, inflate(payload.array(), PayloadCodec.HEADER_SIZE,
+                payload.remaining() - PayloadCodec.HEADER_SIZE, data.length));
+    }
+
+    @Test
+    public void encoder_sendsIncompressibleAsIs() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(5).nextBytes(data);
+        ByteBuffer payload = new PayloadEncoder(PayloadCodec.lz4()).encode(ByteBuffer.wrap(data));
+
+        assertEquals(PayloadCodec.ID_NONE, payload.get(0));
+        assertEquals(PayloadCodec.HEADER_SIZE + data.length, payload.remaining());
+        assertArrayEquals(data, Arrays.copyOfRange(payload.array(), PayloadCodec.HEADER_SIZE, payload.remaining()));
+    }
+
+    @Test
+    public void deflate_encodesAgainAfterRelease() throws Exception {
+        byte[] data = text();
+        PayloadCodec codec = PayloadCodec.deflate();
+        byte[] encoded = new byte[codec.maxEncodedLength(data.length)];
+
+        codec.encode(ByteBuffer.wrap(data), encoded, 0);
+        codec.release();
+        int length = codec.encode(ByteBuffer.wrap(data), encoded, 0);
+
+        assertArrayEquals(data, inflate(encoded, 0, length, data.length));
+        codec.release();
+    }
+}